@@ -0,0 +1,83 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Shared scene set up for the benchmarks, using the same defaults as
+ * {@link MainApplication} so the numbers match what the UI renders.
+ *
+ * @author SkidRunner
+ */
+final class BenchmarkScenes {
+
+    static final String[] PATTERN = {
+            "-****--******-",
+            "**--**-**---**",
+            "**-----**---**",
+            "*****--**--***",
+            "----**-*****--",
+            "**--**-**-***-",
+            "-****--**--***"
+    };
+
+    private BenchmarkScenes() {
+    }
+
+    // Repeats the default pattern until it is size characters on each side.
+    // A size of 0 returns the default pattern unchanged.
+    static String[] pattern(int size) {
+        if (size <= 0) {
+            return PATTERN.clone();
+        }
+
+        String[] lines = new String[size];
+
+        for (int r = 0; r < size; r++) {
+            String source = PATTERN[r % PATTERN.length];
+            StringBuilder builder = new StringBuilder(size);
+
+            for (int c = 0; c < size; c++) {
+                builder.append(source.charAt(c % source.length()));
+            }
+
+            lines[r] = builder.toString();
+        }
+
+        return lines;
+    }
+
+    static RenderConfig config(int width, int height, int rays, int threads, int patternSize) {
+        RenderConfig config = new RenderConfig();
+
+        config.setImageWidth(width);
+        config.setImageHeight(height);
+        config.setRays(rays);
+        config.setThreads(threads);
+        config.setLines(pattern(patternSize));
+
+        config.setBrightness(10);
+        config.setCamDirection(new Vector3D(-2, -12, 0));
+        config.setEvenColour(new Vector3D(3, 1, 1));
+        config.setOddColour(new Vector3D(3, 3, 3));
+        config.setRayOrigin(new Vector3D(8, 18, 8));
+        config.setSkyColour(new Vector3D(.4f, .4f, 1f));
+        config.setSphereReflectivity(0.5f);
+
+        return config;
+    }
+}
@@ -0,0 +1,173 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * First hit of coherent primary rays: runs of neighbouring pixels traced one
+ * ray at a time with {@link Ray#test} against the same runs traced as
+ * {@link RayPacket}s, with the Vector API and with the scalar fallback. Each
+ * invocation traces one run of {@link #RUN} rays and the score is rays per
+ * second.
+ *
+ * @author SkidRunner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector",
+        "-D" + VectorSupport.PROPERTY + "=true"})
+public class PacketBenchmark {
+
+    private static final int RUN = 16;
+    private static final int RUNS = 256;
+
+    @Param({"0", "32"})
+    public int patternSize;
+
+    @Param({"4", "8", "16"})
+    public int packetSize;
+
+    @Param({"true", "false"})
+    public boolean vector;
+
+    private Ray ray;
+    private TraceContext context = new TraceContext();
+
+    private PacketTracer tracer;
+    private RayPacket packet;
+
+    private Vector3D origin;
+    private double[] directions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        RenderConfig config = BenchmarkScenes.config(512, 512, 1, 1, patternSize);
+        config.setAcceleration(Acceleration.BVH);
+
+        ray = new Ray();
+        ray.prepare(config);
+
+        String[] lines = config.getLines();
+        int rows = lines.length;
+        int cols = lines[0].length();
+        boolean[][] data = new boolean[rows][cols];
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                data[rows - 1 - r][cols - 1 - c] = lines[r].charAt(c) == '*';
+            }
+        }
+
+        SphereHierarchy hierarchy = new SphereHierarchy(data, rows, cols, SphereKernel.create());
+
+        tracer = vector ? PacketTracer.create(hierarchy, packetSize) : new PacketTracer(hierarchy);
+        packet = new RayPacket(packetSize);
+
+        if (vector && !tracer.isVectorised()) {
+            throw new IllegalStateException("jdk.incubator.vector is not available");
+        }
+
+        // The same camera set up as Ray.render. Each run is RUN pixels of
+        // one row starting at a random pixel, with a fixed seed so every run
+        // traces the same rays.
+        Vector3D g = config.getCamDirection().normalise();
+        Vector3D a = new Vector3D(0, 0, 1).cross(g).normalise().scale(.003f);
+        Vector3D b = g.cross(a).normalise().scale(.003f);
+        Vector3D c = a.add(b).scale(-256).add(g);
+
+        Random random = new Random(42);
+
+        origin = config.getRayOrigin();
+        directions = new double[RUNS * RUN * 3];
+
+        for (int run = 0; run < RUNS; run++) {
+            double x = random.nextInt(config.getImageWidth() - RUN);
+            double y = random.nextInt(config.getImageHeight());
+
+            for (int i = 0; i < RUN; i++) {
+                Vector3D direction = a.scale(x + i + random.nextDouble()).add(b.scale(y + random.nextDouble()))
+                        .add(c).scale(16).normalise();
+
+                int d = (run * RUN + i) * 3;
+                directions[d] = direction.getX();
+                directions[d + 1] = direction.getY();
+                directions[d + 2] = direction.getZ();
+            }
+        }
+    }
+
+    private int nextRun() {
+        int run = next * RUN * 3;
+        next = (next + 1) % RUNS;
+        return run;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RUN)
+    public double scalar() {
+        int d = nextRun();
+        double distance = 0;
+
+        for (int i = 0; i < RUN; i++, d += 3) {
+            ray.test(origin.getX(), origin.getY(), origin.getZ(),
+                    directions[d], directions[d + 1], directions[d + 2], context);
+            distance += context.hit.distance;
+        }
+
+        return distance;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RUN)
+    public double packet() {
+        int d = nextRun();
+        double distance = 0;
+
+        for (int start = 0; start < RUN; start += packetSize) {
+            for (int lane = 0; lane < packetSize; lane++, d += 3) {
+                packet.set(lane, origin.getX(), origin.getY(), origin.getZ(),
+                        directions[d], directions[d + 1], directions[d + 2]);
+            }
+
+            packet.count = packetSize;
+            tracer.intersect(packet);
+            distance += packet.distance[0];
+        }
+
+        return distance;
+    }
+}
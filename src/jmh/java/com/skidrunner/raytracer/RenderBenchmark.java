@@ -0,0 +1,106 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end cost of {@link Ray#render(RenderConfig)}. The score is frames
+ * per second, the {@code primaryRays} counter is the primary rays per second
+ * traced for those frames.
+ *
+ * @author SkidRunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class RenderBenchmark {
+
+    // Every size frames the same view, the camera scales its pixels to the
+    // image, so 128 is the 512 frame at a sixteenth of the pixels.
+    @Param({"128", "512"})
+    public int imageSize;
+
+    @Param({"1", "16"})
+    public int rays;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"0", "32"})
+    public int patternSize;
+
+    @Param({"GRID", "BVH", "NONE"})
+    public Acceleration acceleration;
+
+    @Param({"STRATIFIED", "RANDOM", "HALTON"})
+    public Sampling sampling;
+
+    // 0 traces primary rays one at a time, see PacketBenchmark for sizes.
+    // Packets are only traced with BVH.
+    @Param({"0"})
+    public int packetSize;
+
+    private RenderConfig config;
+
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Counters {
+
+        public long primaryRays;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            primaryRays = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        config = BenchmarkScenes.config(imageSize, imageSize, rays, threads, patternSize);
+        config.setAcceleration(acceleration);
+        config.setSampling(sampling);
+        config.setPacketSize(packetSize);
+    }
+
+    @Benchmark
+    public IntBuffer render(Counters counters) {
+        Ray ray = new Ray();
+        ray.render(config);
+        counters.primaryRays += (long) imageSize * imageSize * rays;
+        return ray.getFrameBuffer();
+    }
+}
@@ -0,0 +1,119 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per ray cost of the intersection loop {@link Ray#test} and of the full
+ * shading of one primary ray with {@link Ray#sample}. Each operation is a
+ * single ray, so the throughput is rays per second.
+ *
+ * @author SkidRunner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class TraceBenchmark {
+
+    private static final int RAY_COUNT = 4096;
+
+    @Param({"0", "32", "100"})
+    public int patternSize;
+
+    @Param({"GRID", "BVH", "NONE"})
+    public Acceleration acceleration;
+
+    private Ray ray;
+    private TraceContext context = new TraceContext();
+
+    private Vector3D origin;
+    private double[] directions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        RenderConfig config = BenchmarkScenes.config(512, 512, 1, 1, patternSize);
+        config.setAcceleration(acceleration);
+
+        ray = new Ray();
+        ray.prepare(config);
+
+        // The same camera set up as Ray.render, sampled at random pixels
+        // with a fixed seed so every run traces the same rays.
+        Vector3D g = config.getCamDirection().normalise();
+        Vector3D a = new Vector3D(0, 0, 1).cross(g).normalise().scale(.003f);
+        Vector3D b = g.cross(a).normalise().scale(.003f);
+        Vector3D c = a.add(b).scale(-256).add(g);
+
+        Random random = new Random(42);
+
+        origin = config.getRayOrigin();
+        directions = new double[RAY_COUNT * 3];
+
+        for (int i = 0; i < RAY_COUNT; i++) {
+            double x = random.nextDouble() * config.getImageWidth();
+            double y = random.nextDouble() * config.getImageHeight();
+
+            Vector3D direction = a.scale(x).add(b.scale(y)).add(c).scale(16).normalise();
+
+            directions[i * 3] = direction.getX();
+            directions[i * 3 + 1] = direction.getY();
+            directions[i * 3 + 2] = direction.getZ();
+        }
+    }
+
+    private int nextDirection() {
+        int direction = next * 3;
+        next = (next + 1) % RAY_COUNT;
+        return direction;
+    }
+
+    @Benchmark
+    public HitRecord test() {
+        int d = nextDirection();
+        ray.test(origin.getX(), origin.getY(), origin.getZ(),
+                directions[d], directions[d + 1], directions[d + 2], context);
+        return context.hit;
+    }
+
+    @Benchmark
+    public double sample() {
+        int d = nextDirection();
+        context.clearColour();
+        ray.sample(origin.getX(), origin.getY(), origin.getZ(),
+                directions[d], directions[d + 1], directions[d + 2], 1, context);
+        return context.red;
+    }
+}
@@ -0,0 +1,71 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The same add, scale, cross product and normalise sequence run against each
+ * of the vector implementations in the project.
+ *
+ * @author SkidRunner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VectorBenchmark {
+
+    private Vector3D immutableA = new Vector3D(8, 18, 8);
+    private Vector3D immutableB = new Vector3D(-2, -12, 0);
+
+    private com.skidrunner.math.Vector3D mathA = new com.skidrunner.math.Vector3D(8, 18, 8);
+    private com.skidrunner.math.Vector3D mathB = new com.skidrunner.math.Vector3D(-2, -12, 0);
+    private com.skidrunner.math.Vector3D mathResult = new com.skidrunner.math.Vector3D();
+
+    private javafx.geometry.Vector3D geometryA = new javafx.geometry.Vector3D(8, 18, 8);
+    private javafx.geometry.Vector3D geometryB = new javafx.geometry.Vector3D(-2, -12, 0);
+    private javafx.geometry.Vector3D geometryResult = new javafx.geometry.Vector3D();
+
+    @Benchmark
+    public Vector3D raytracer() {
+        return immutableA.add(immutableB).scale(0.5).cross(immutableB).normalise();
+    }
+
+    @Benchmark
+    public com.skidrunner.math.Vector3D math() {
+        return mathResult.set(mathA).add(mathB).multiply(0.5).crossProduct(mathB).normalize();
+    }
+
+    @Benchmark
+    public javafx.geometry.Vector3D geometry() {
+        return geometryResult.set(geometryA).add(geometryB).multiply(0.5).crossProduct(geometryB).normalize();
+    }
+}
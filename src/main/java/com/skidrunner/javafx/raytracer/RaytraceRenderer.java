@@ -9,6 +9,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Runs {@link #render()} on a thread of its own. Subclasses poll
+ * {@link #isRunning()} at tile or row boundaries, or override
+ * {@link #cancel()}, so {@link #stop()} returns promptly.
+ *
  * Created by Mark on 5/3/2016.
  */
 public class RaytraceRenderer {
@@ -21,12 +25,20 @@ public class RaytraceRenderer {
     private Thread thread;
     private final AtomicBoolean running;
 
-    public RaytraceRenderer(Canvas canvas, Parent group) {
+    public RaytraceRenderer(Canvas canvas, Parent parent) {
         this.canvas = canvas;
         this.parent = parent;
         running = new AtomicBoolean(false);
     }
 
+    public Canvas getCanvas() {
+        return canvas;
+    }
+
+    public Parent getParent() {
+        return parent;
+    }
+
     public boolean isRunning() {
         boolean value;
         synchronized (running) {
@@ -46,11 +58,18 @@ public class RaytraceRenderer {
             return;
         }
 
+        setRunning(true);
+
         thread = new Thread(new Runnable() {
             public void run() {
-                render();
+                try {
+                    render();
+                } finally {
+                    setRunning(false);
+                }
             }
         });
+        thread.setDaemon(true);
         thread.start();
     }
 
@@ -58,8 +77,24 @@ public class RaytraceRenderer {
 
     }
 
+    // Called by stop() once isRunning() is false, for renders that wait on
+    // something other than the flag.
+    protected void cancel() {
+
+    }
+
     public void stop() {
+        if(thread == null) {
+            return;
+        }
+
         setRunning(false);
+        cancel();
+
+        // render() may stop itself, there is nothing to wait for then.
+        if(thread == Thread.currentThread()) {
+            return;
+        }
 
         while(true) {
             try {
@@ -70,4 +105,10 @@ public class RaytraceRenderer {
             }
         }
     }
+
+    // Aborts the render in progress, if any, and starts over.
+    public void restart() {
+        stop();
+        start();
+    }
 }
@@ -14,7 +14,7 @@ public class BoundingBox {
     }
 
     public BoundingBox(Vector3D minimum, Vector3D maximum) {
-        this.maximum = new Vector3D(minimum);
+        this.minimum = new Vector3D(minimum);
         this.maximum = new Vector3D(maximum);
     }
 
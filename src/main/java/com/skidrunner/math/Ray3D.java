@@ -90,34 +90,42 @@ public class Ray3D implements Cloneable, java.io.Serializable {
         this.magnitude = magnitude;
     }
 
+    /**
+     * Tests {@code this} ray against the specified box using the slab method.
+     *
+     * @param   boundingBox The box to test against
+     * @param   result Set to the point where the ray enters the box, or to
+     *          the origin if the origin is inside the box
+     * @return  {@code true} if the ray reaches the box within its magnitude
+     */
     public boolean intersect(BoundingBox boundingBox, Vector3D result) {
         Vector3D minimum = boundingBox.getMinimum();
         Vector3D maximum = boundingBox.getMaximum();
 
-        double tx1 = (minimum.x - origin.x) * -direction.x;
-        double tx2 = (maximum.x - origin.x) * -direction.x;
+        double tx1 = (minimum.x - origin.x) / direction.x;
+        double tx2 = (maximum.x - origin.x) / direction.x;
 
         double tmin = Math.min(tx1, tx2);
         double tmax = Math.max(tx1, tx2);
 
-        double ty1 = (minimum.y - origin.y) * -direction.y;
-        double ty2 = (maximum.y - origin.y) * -direction.y;
+        double ty1 = (minimum.y - origin.y) / direction.y;
+        double ty2 = (maximum.y - origin.y) / direction.y;
 
-        tmin = Math.min(tmin, Math.min(ty1, ty2));
-        tmax = Math.max(tmax, Math.max(ty1, ty2));
+        tmin = Math.max(tmin, Math.min(ty1, ty2));
+        tmax = Math.min(tmax, Math.max(ty1, ty2));
 
-        double tz1 = (minimum.z - origin.z) * -direction.z;
-        double tz2 = (maximum.z - origin.z) * -direction.z;
+        double tz1 = (minimum.z - origin.z) / direction.z;
+        double tz2 = (maximum.z - origin.z) / direction.z;
 
-        tmin = Math.min(tmin, Math.min(tz1, tz2));
-        tmax = Math.max(tmax, Math.max(tz1, tz2));
+        tmin = Math.max(tmin, Math.min(tz1, tz2));
+        tmax = Math.min(tmax, Math.max(tz1, tz2));
 
-        result.set(origin).multiply(tmax);
-
-        if (tmax < 0 || tmax <= tmin) {
+        if (tmax < 0 || tmax < tmin || tmin > magnitude) {
             return false;
         }
 
+        result.set(direction).multiply(Math.max(tmin, 0)).add(origin);
+
         return true;
     }
 
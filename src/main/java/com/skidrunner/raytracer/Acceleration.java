@@ -0,0 +1,44 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How {@link Ray} finds the closest sphere along a ray.
+ *
+ * @author SkidRunner
+ */
+public enum Acceleration {
+
+    /**
+     * Tests every sphere in the pattern. Slow, but kept as the reference to
+     * validate the other modes against.
+     */
+    NONE,
+
+    /**
+     * Walks the ray through the pattern cells it crosses and stops at the
+     * first cell past the closest hit.
+     */
+    GRID,
+
+    /**
+     * Traverses a bounding volume hierarchy built over the spheres, nearest
+     * child first.
+     */
+    BVH
+}
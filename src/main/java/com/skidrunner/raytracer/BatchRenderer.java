@@ -0,0 +1,412 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a single frame from the command line without starting the JavaFX
+ * toolkit. Settings are read from an optional properties file followed by
+ * any number of {@code key=value} overrides:
+ *
+ * <pre>
+ * BatchRenderer [render.properties] [key=value ...]
+ * </pre>
+ *
+ * Vectors are written as {@code x,y,z} and pattern lines are separated by new
+ * lines or {@code /}. The image is written to {@code output}, as PNG when the
+ * name ends in {@code .png} and as binary PPM otherwise. If {@code trace} is
+ * set, a Chrome trace of the render phases and tiles is written there too.
+ * If {@code costMap} is set, a false colour picture of what each pixel cost,
+ * measured by {@code costMetric}, is written there in the same formats.
+ * If {@code listen} is set to a port, the tiles are traced by
+ * {@link RenderWorker}s that connect to it rather than on this machine, and
+ * a tile not back within {@code tileTimeout} milliseconds is given to
+ * another worker.
+ * If {@code keyframes} is set, a sequence of {@code frames} frames is
+ * rendered instead, by default up to the last keyframe. Keyframes are
+ * written {@code frame:rayOrigin:camDirection} and separated by {@code ;},
+ * and {@code output} is either a {@code .y4m} stream played at
+ * {@code frameRate} or a name with a frame number format in it, such as
+ * {@code frame%04d.png}. With {@code reprojection} on, each frame starts
+ * from the samples of the one before that are still in view.
+ * With {@code adaptiveThreshold} set, a pixel stops once its noise is below
+ * it, after a quarter of {@code rays}. {@code maxRays} lets noisy pixels go
+ * past {@code rays}, at the risk of tracing more rays than without adaptive
+ * sampling.
+ * {@code packetSize} traces primary rays in packets and needs
+ * {@code acceleration=BVH}. It is slower end to end than the default GRID,
+ * see {@link PacketTracer}.
+ *
+ * @author SkidRunner
+ */
+public class BatchRenderer {
+
+    private static Properties defaults() {
+        Properties defaults = new Properties();
+
+        defaults.setProperty("pattern", "-****--******-/**--**-**---**/**-----**---**/*****--**--***/"
+                + "----**-*****--/**--**-**-***-/-****--**--***");
+        defaults.setProperty("imageWidth", "512");
+        defaults.setProperty("imageHeight", "512");
+        defaults.setProperty("rays", "16");
+        defaults.setProperty("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        defaults.setProperty("tileSize", "32");
+        defaults.setProperty("acceleration", "GRID");
+        defaults.setProperty("sampling", "STRATIFIED");
+        defaults.setProperty("progressive", "false");
+        defaults.setProperty("adaptiveThreshold", "0");
+        defaults.setProperty("maxRays", "0");
+        defaults.setProperty("packetSize", "0");
+        defaults.setProperty("rayOrigin", "8,18,8");
+        defaults.setProperty("camDirection", "-2,-12,0");
+        defaults.setProperty("oddColour", "3,3,3");
+        defaults.setProperty("evenColour", "3,1,1");
+        defaults.setProperty("skyColour", ".4,.4,1");
+        defaults.setProperty("sphereReflectivity", "0.5");
+        defaults.setProperty("maxDepth", "8");
+        defaults.setProperty("brightness", "10");
+        defaults.setProperty("gamma", "1");
+        defaults.setProperty("output", "render.ppm");
+        defaults.setProperty("trace", "");
+        defaults.setProperty("costMap", "");
+        defaults.setProperty("costMetric", "TIME");
+        defaults.setProperty("reprojection", "false");
+        defaults.setProperty("listen", "");
+        defaults.setProperty("tileTimeout", "60000");
+        defaults.setProperty("keyframes", "");
+        defaults.setProperty("frames", "0");
+        defaults.setProperty("frameRate", "30");
+
+        return defaults;
+    }
+
+    static Properties parseArguments(String[] arguments) throws IOException {
+        Properties properties = new Properties(defaults());
+
+        for (String argument : arguments) {
+            int split = argument.indexOf('=');
+
+            if (split < 0) {
+                InputStream in = new FileInputStream(argument);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } else {
+                properties.setProperty(argument.substring(0, split).trim(), argument.substring(split + 1).trim());
+            }
+        }
+
+        return properties;
+    }
+
+    static RenderConfig createConfig(Properties properties) {
+        RenderConfig config = new RenderConfig();
+
+        config.setLines(parsePattern(properties.getProperty("pattern")));
+        config.setImageWidth(Integer.parseInt(properties.getProperty("imageWidth")));
+        config.setImageHeight(Integer.parseInt(properties.getProperty("imageHeight")));
+        config.setRays(Integer.parseInt(properties.getProperty("rays")));
+        config.setThreads(Integer.parseInt(properties.getProperty("threads")));
+        config.setTileSize(Integer.parseInt(properties.getProperty("tileSize")));
+        config.setAcceleration(Acceleration.valueOf(properties.getProperty("acceleration").toUpperCase()));
+        config.setSampling(Sampling.valueOf(properties.getProperty("sampling").toUpperCase()));
+        config.setProgressive(Boolean.parseBoolean(properties.getProperty("progressive")));
+        config.setAdaptiveThreshold(Float.parseFloat(properties.getProperty("adaptiveThreshold")));
+        config.setMaxRays(Integer.parseInt(properties.getProperty("maxRays")));
+        config.setPacketSize(Integer.parseInt(properties.getProperty("packetSize")));
+        config.setCostMap(properties.getProperty("costMap").length() > 0);
+        config.setReprojection(Boolean.parseBoolean(properties.getProperty("reprojection")));
+        config.setRayOrigin(parseVector(properties.getProperty("rayOrigin")));
+        config.setCamDirection(parseVector(properties.getProperty("camDirection")));
+        config.setOddColour(parseVector(properties.getProperty("oddColour")));
+        config.setEvenColour(parseVector(properties.getProperty("evenColour")));
+        config.setSkyColour(parseVector(properties.getProperty("skyColour")));
+        config.setSphereReflectivity(Float.parseFloat(properties.getProperty("sphereReflectivity")));
+        config.setMaxDepth(Integer.parseInt(properties.getProperty("maxDepth")));
+        config.setBrightness(Float.parseFloat(properties.getProperty("brightness")));
+        config.setGamma(Float.parseFloat(properties.getProperty("gamma")));
+
+        if (config.getPacketSize() > 1 && config.getAcceleration() != Acceleration.BVH) {
+            throw new IllegalArgumentException("packetSize needs acceleration=BVH, packets walk the hierarchy");
+        }
+
+        return config;
+    }
+
+    // Splits the pattern into lines and pads them to the same width, Ray
+    // takes the width of the pattern from the first line.
+    static String[] parsePattern(String text) {
+        String[] lines = text.split("[\r\n/]+");
+
+        int maxWidth = 0;
+
+        for (String line : lines) {
+            if (line.length() > maxWidth) {
+                maxWidth = line.length();
+            }
+        }
+
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder builder = new StringBuilder(lines[i]);
+
+            while (builder.length() < maxWidth) {
+                builder.append(' ');
+            }
+
+            lines[i] = builder.toString();
+        }
+
+        return lines;
+    }
+
+    static Vector3D parseVector(String text) {
+        String[] values = text.split(",");
+
+        if (values.length != 3) {
+            throw new IllegalArgumentException("Expected x,y,z but found: " + text);
+        }
+
+        return new Vector3D(
+                Double.parseDouble(values[0].trim()),
+                Double.parseDouble(values[1].trim()),
+                Double.parseDouble(values[2].trim()));
+    }
+
+    static Keyframe[] parseKeyframes(String text) {
+        String[] values = text.split(";");
+        Keyframe[] keyframes = new Keyframe[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            String[] parts = values[i].split(":");
+
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Expected frame:rayOrigin:camDirection but found: " + values[i]);
+            }
+
+            keyframes[i] = new Keyframe(Integer.parseInt(parts[0].trim()), parseVector(parts[1]), parseVector(parts[2]));
+        }
+
+        return keyframes;
+    }
+
+    static void writePPM(byte[] imageData, int width, int height, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+            out.write(imageData, 0, width * height * 3);
+        } finally {
+            out.close();
+        }
+    }
+
+    static void writePNG(byte[] imageData, int width, int height, File file) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        int pixel = 0;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = imageData[pixel++] & 0xFF;
+                int green = imageData[pixel++] & 0xFF;
+                int blue = imageData[pixel++] & 0xFF;
+
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+
+        ImageIO.write(image, "png", file);
+    }
+
+    // Writes RGB bytes as PNG if the file name ends in .png, as PPM otherwise.
+    static void writeImage(byte[] data, int width, int height, File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".png")) {
+            writePNG(data, width, height, file);
+        } else {
+            writePPM(data, width, height, file);
+        }
+    }
+
+    public static void main(String[] arguments) {
+        System.setProperty("java.awt.headless", "true");
+
+        Properties properties;
+        RenderConfig config;
+        RenderTrace trace = null;
+
+        try {
+            properties = parseArguments(arguments);
+
+            if (properties.getProperty("trace").length() > 0) {
+                trace = RenderTrace.start();
+            }
+
+            PhaseEvent phase = PhaseEvent.start("Config parse");
+            config = createConfig(properties);
+            phase.finish();
+        } catch (IOException exception) {
+            System.err.println("Unable to read settings: " + exception.getMessage());
+            System.exit(1);
+            return;
+        } catch (IllegalArgumentException exception) {
+            System.err.println("Invalid setting: " + exception.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        File output = new File(properties.getProperty("output"));
+        Ray raytracer;
+        long renderTime;
+        long rays;
+        boolean sequence = properties.getProperty("keyframes").length() > 0;
+
+        if (sequence) {
+            SequenceRenderer renderer;
+            int frames;
+
+            try {
+                Keyframe[] keyframes = parseKeyframes(properties.getProperty("keyframes"));
+
+                frames = Integer.parseInt(properties.getProperty("frames"));
+
+                if (frames <= 0) {
+                    frames = keyframes[keyframes.length - 1].frame + 1;
+                }
+
+                if (!output.getName().toLowerCase().endsWith(".y4m") && output.getName().indexOf('%') < 0) {
+                    throw new IllegalArgumentException("output needs a frame number format or a .y4m name: " + output);
+                }
+
+                renderer = new SequenceRenderer(config, keyframes, frames,
+                        Integer.parseInt(properties.getProperty("frameRate")));
+            } catch (IllegalArgumentException exception) {
+                System.err.println("Invalid setting: " + exception.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+
+            try {
+                raytracer = renderer.render(output);
+            } catch (IOException exception) {
+                System.err.println("Unable to write " + output + ": " + exception.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            renderTime = System.currentTimeMillis() - start;
+            rays = raytracer.getStats().getPrimaryRays();
+
+            System.out.println("Frames: " + frames);
+            System.out.println("Frames per second: " + (frames * 1000.0 / Math.max(1, renderTime)));
+        } else if (properties.getProperty("listen").length() > 0) {
+            try {
+                RenderCoordinator coordinator = new RenderCoordinator(config,
+                        Integer.parseInt(properties.getProperty("listen")),
+                        Integer.parseInt(properties.getProperty("tileTimeout")));
+
+                raytracer = coordinator.render();
+                renderTime = raytracer.getRenderTime();
+                rays = raytracer.getSampleCount();
+            } catch (NumberFormatException exception) {
+                System.err.println("Invalid setting: " + exception.getMessage());
+                System.exit(1);
+                return;
+            } catch (IOException exception) {
+                System.err.println("Unable to coordinate workers: " + exception.getMessage());
+                System.exit(1);
+                return;
+            }
+        } else {
+            raytracer = new Ray();
+            raytracer.render(config);
+
+            renderTime = raytracer.getRenderTime();
+            rays = raytracer.getSampleCount();
+        }
+
+        System.out.println("Render time: " + renderTime + "ms");
+        System.out.println("Primary rays: " + rays);
+        System.out.println("Primary rays per second: " + (rays * 1000 / Math.max(1, renderTime)));
+
+        RenderStats stats = raytracer.getStats();
+
+        System.out.println("Shadow rays: " + stats.getShadowRays());
+        System.out.println("Reflection rays: " + stats.getReflectionRays());
+        System.out.println("Sphere tests: " + stats.getSphereTests());
+        System.out.println("Worker utilisation: " + Arrays.toString(stats.getWorkerUtilisation()));
+
+        if (!sequence) {
+            try {
+                writeImage(raytracer.getImageData(), config.getImageWidth(), config.getImageHeight(), output);
+            } catch (IOException exception) {
+                System.err.println("Unable to write " + output + ": " + exception.getMessage());
+                System.exit(1);
+            }
+        }
+
+        CostMap costMap = raytracer.getCostMap();
+
+        if (costMap != null) {
+            File costOutput = new File(properties.getProperty("costMap"));
+            CostMetric metric;
+
+            try {
+                metric = CostMetric.valueOf(properties.getProperty("costMetric").toUpperCase());
+            } catch (IllegalArgumentException exception) {
+                System.err.println("Invalid setting: " + exception.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            try {
+                writeImage(costMap.getImageData(metric), costMap.getWidth(), costMap.getHeight(), costOutput);
+            } catch (IOException exception) {
+                System.err.println("Unable to write " + costOutput + ": " + exception.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (trace != null) {
+            File traceFile = new File(properties.getProperty("trace"));
+
+            trace.stop();
+
+            try {
+                trace.write(traceFile);
+            } catch (IOException exception) {
+                System.err.println("Unable to write " + traceFile + ": " + exception.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Diagnostic record of what each pixel of a render cost, kept when
+ * {@link RenderConfig#isCostMap()} is set. Pixels are indexed like the frame
+ * buffer, top down and right to left, so {@link #toColours} lines up with
+ * the image.
+ *
+ * Pixels traced in a packet share the cost of finding their first hits
+ * evenly, after which each is charged for its own shading.
+ *
+ * @author SkidRunner
+ */
+public class CostMap {
+
+    // Blue through cyan, green and yellow to red, evenly spaced.
+    private static final int[] RAMP = {0x0000FF, 0x00FFFF, 0x00FF00, 0xFFFF00, 0xFF0000};
+
+    private final int width;
+    private final int height;
+
+    final int[] samples;
+    final long[] sphereTests;
+    final int[] depth;
+    final long[] nanos;
+
+    CostMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        samples = new int[width * height];
+        sphereTests = new long[width * height];
+        depth = new int[width * height];
+        nanos = new long[width * height];
+    }
+
+    // Charges a pixel for tracing some samples. Each pixel is traced by one
+    // worker at a time, so no synchronisation is needed.
+    void add(int index, int samples, long sphereTests, int depth, long nanos) {
+        this.samples[index] += samples;
+        this.sphereTests[index] += sphereTests;
+        this.nanos[index] += nanos;
+
+        if (depth > this.depth[index]) {
+            this.depth[index] = depth;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long get(CostMetric metric, int index) {
+        switch (metric) {
+            case SAMPLES:
+                return samples[index];
+            case SPHERE_TESTS:
+                return sphereTests[index];
+            case DEPTH:
+                return depth[index];
+            default:
+                return nanos[index];
+        }
+    }
+
+    /**
+     * Returns the metric as opaque ARGB false colours, one int per pixel,
+     * from blue for the cheapest pixel to red for the most expensive. The
+     * scale tops out at the 99th percentile, so a few pixels that were
+     * interrupted by a garbage collection do not wash out the rest.
+     */
+    public int[] toColours(CostMetric metric) {
+        int pixels = width * height;
+        long[] values = new long[pixels];
+
+        for (int i = 0; i < pixels; i++) {
+            values[i] = get(metric, i);
+        }
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        long minimum = pixels > 0 ? sorted[0] : 0;
+        long maximum = pixels > 0 ? sorted[Math.min(pixels - 1, (int) (pixels * .99))] : 0;
+        double range = Math.max(1, maximum - minimum);
+
+        int[] colours = new int[pixels];
+
+        for (int i = 0; i < pixels; i++) {
+            double level = Math.min(1, (values[i] - minimum) / range);
+            colours[i] = 0xFF000000 | colour(level);
+        }
+
+        return colours;
+    }
+
+    /**
+     * Returns {@link #toColours} as RGB bytes, three per pixel, like
+     * {@link Ray#getImageData()}.
+     */
+    public byte[] getImageData(CostMetric metric) {
+        int[] colours = toColours(metric);
+        byte[] imageData = new byte[colours.length * 3];
+
+        for (int i = 0, pixel = 0; i < colours.length; i++) {
+            imageData[pixel++] = (byte) (colours[i] >> 16);
+            imageData[pixel++] = (byte) (colours[i] >> 8);
+            imageData[pixel++] = (byte) colours[i];
+        }
+
+        return imageData;
+    }
+
+    // Interpolates RAMP at level, 0 to 1.
+    private static int colour(double level) {
+        double position = level * (RAMP.length - 1);
+        int low = Math.min((int) position, RAMP.length - 2);
+        double blend = position - low;
+
+        int from = RAMP[low];
+        int to = RAMP[low + 1];
+
+        int red = (int) Math.round((from >> 16 & 0xFF) + ((to >> 16 & 0xFF) - (from >> 16 & 0xFF)) * blend);
+        int green = (int) Math.round((from >> 8 & 0xFF) + ((to >> 8 & 0xFF) - (from >> 8 & 0xFF)) * blend);
+        int blue = (int) Math.round((from & 0xFF) + ((to & 0xFF) - (from & 0xFF)) * blend);
+
+        return red << 16 | green << 8 | blue;
+    }
+}
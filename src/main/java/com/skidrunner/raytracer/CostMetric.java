@@ -0,0 +1,46 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * What a {@link CostMap} shows for each pixel.
+ *
+ * @author SkidRunner
+ */
+public enum CostMetric {
+
+    /**
+     * Primary rays traced.
+     */
+    SAMPLES,
+
+    /**
+     * Ray-sphere intersection tests, for every ray of every sample.
+     */
+    SPHERE_TESTS,
+
+    /**
+     * Rays in the longest path, 1 for a primary ray that did not reflect.
+     */
+    DEPTH,
+
+    /**
+     * Nanoseconds spent tracing.
+     */
+    TIME
+}
@@ -0,0 +1,199 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * What a {@link Ray} render leaves behind for the next one to reuse when
+ * only the camera has moved: the samples accumulated for each pixel and the
+ * first surface seen through its centre. The arrays are the ones the render
+ * fills, not copies, so they hold whatever it got done before it finished
+ * or was stopped.
+ *
+ * @author SkidRunner
+ */
+final class FrameHistory {
+
+    // A reused pixel's first hit must be within this fraction of its
+    // distance from where the new ray hits.
+    private static final double DEPTH_TOLERANCE = 0.02;
+
+    // The smallest cosine between the old and new normals of a sphere hit.
+    private static final double NORMAL_TOLERANCE = 0.9;
+
+    // Renders samples are carried through before they are traced again.
+    // Each move shifts them by up to half a pixel, and without a limit a
+    // long orbit of one ray previews would smear the floor.
+    private static final int MAXIMUM_AGE = 8;
+
+    // Pixels whose samples spread more than this fraction of their mean
+    // are not reused. They straddle an edge, a checker line or the rim of
+    // a shadow, which moves when the samples are shifted to the nearest new
+    // pixel.
+    private static final double SPREAD_TOLERANCE = 0.05;
+
+    final RenderConfig config;
+    final float[] accumulation;
+    final int[] sampleCounts;
+    final float[] luminance;
+    final float[] luminanceSquared;
+
+    // Per pixel, the first hit through its centre: the point hit, or the
+    // ray direction for the sky, the surface normal and the material.
+    final float[] hitPoints;
+    final float[] hitNormals;
+    final byte[] hitMaterials;
+
+    // How many renders in a row each pixel's samples have been carried
+    // through, 0 for samples traced in this one.
+    final byte[] ages;
+
+    private final int width;
+    private final int height;
+
+    // The camera of the render, as Ray sets it up.
+    private final double originX, originY, originZ;
+    private final double aX, aY, aZ, aa;
+    private final double bX, bY, bZ, bb;
+    private final double gX, gY, gZ;
+
+    FrameHistory(RenderConfig config, Vector3D a, Vector3D b, Vector3D c, float[] accumulation, int[] sampleCounts,
+                 float[] luminance, float[] luminanceSquared) {
+        this.config = new RenderConfig(config);
+        this.accumulation = accumulation;
+        this.sampleCounts = sampleCounts;
+        this.luminance = luminance;
+        this.luminanceSquared = luminanceSquared;
+
+        width = config.getImageWidth();
+        height = config.getImageHeight();
+
+        hitPoints = new float[width * height * 3];
+        hitNormals = new float[width * height * 3];
+        hitMaterials = new byte[width * height];
+        ages = new byte[width * height];
+
+        originX = config.getRayOrigin().getX();
+        originY = config.getRayOrigin().getY();
+        originZ = config.getRayOrigin().getZ();
+        aX = a.getX();
+        aY = a.getY();
+        aZ = a.getZ();
+        aa = a.dot(a);
+        bX = b.getX();
+        bY = b.getY();
+        bZ = b.getZ();
+        bb = b.dot(b);
+
+        // The view direction, which c is offset from by half the image.
+        Vector3D g = a.scale(width / 2.0).add(b.scale(height / 2.0)).add(c);
+        gX = g.getX();
+        gY = g.getY();
+        gZ = g.getZ();
+    }
+
+    // True if config renders the same scene, so samples from this render are
+    // worth reprojecting into it. The size may differ, a preview and the full
+    // render can use each other's samples.
+    boolean matches(RenderConfig config) {
+        return Arrays.equals(config.getLines(), this.config.getLines())
+                && same(config.getOddColour(), this.config.getOddColour())
+                && same(config.getEvenColour(), this.config.getEvenColour())
+                && same(config.getSkyColour(), this.config.getSkyColour())
+                && config.getSphereReflectivity() == this.config.getSphereReflectivity()
+                && config.getMaxDepth() == this.config.getMaxDepth();
+    }
+
+    // The pixel whose samples can stand in for a new pixel that first hits
+    // material at x, y, z with the given normal, distance away. For the sky
+    // x, y, z is the ray direction. Returns -1 if the point was off screen,
+    // hidden behind something else or never traced in this render.
+    int find(int material, double x, double y, double z, double normalX, double normalY, double normalZ,
+             double distance) {
+        double vx = x;
+        double vy = y;
+        double vz = z;
+
+        if (material != HitRecord.SKY) {
+            vx -= originX;
+            vy -= originY;
+            vz -= originZ;
+        }
+
+        // Solve v = s (a * u + b * w + c) for the pixel u, w the point is
+        // seen through, using that a, b and g are at right angles.
+        double s = vx * gX + vy * gY + vz * gZ;
+
+        if (s <= 0) {
+            return -1;
+        }
+
+        double u = (vx * aX + vy * aY + vz * aZ) / (s * aa) + width / 2.0;
+        double w = (vx * bX + vy * bY + vz * bZ) / (s * bb) + height / 2.0;
+
+        if (!(u >= 0 && u < width && w >= 0 && w < height)) {
+            return -1;
+        }
+
+        int column = width - 1 - (int) u;
+        int row = height - 1 - (int) w;
+        int index = row * width + column;
+
+        if (sampleCounts[index] == 0 || hitMaterials[index] != material || ages[index] >= MAXIMUM_AGE) {
+            return -1;
+        }
+
+        if (material == HitRecord.SKY) {
+            return index;
+        }
+
+        double dx = hitPoints[index * 3] - x;
+        double dy = hitPoints[index * 3 + 1] - y;
+        double dz = hitPoints[index * 3 + 2] - z;
+        double tolerance = DEPTH_TOLERANCE * distance;
+
+        if (dx * dx + dy * dy + dz * dz > tolerance * tolerance) {
+            return -1;
+        }
+
+        double cosine = hitNormals[index * 3] * normalX + hitNormals[index * 3 + 1] * normalY
+                + hitNormals[index * 3 + 2] * normalZ;
+
+        if (cosine < NORMAL_TOLERANCE) {
+            return -1;
+        }
+
+        int samples = sampleCounts[index];
+
+        if (samples >= 2) {
+            double mean = luminance[index] / samples;
+            double variance = (luminanceSquared[index] - mean * luminance[index]) / (samples - 1);
+
+            if (variance > SPREAD_TOLERANCE * SPREAD_TOLERANCE * mean * mean) {
+                return -1;
+            }
+        }
+
+        return index;
+    }
+
+    private static boolean same(Vector3D a, Vector3D b) {
+        return a.getX() == b.getX() && a.getY() == b.getY() && a.getZ() == b.getZ();
+    }
+}
@@ -0,0 +1,82 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * Halton low discrepancy sequence, one prime base per dimension. Each pixel
+ * gets its own random rotation of the sequence (Cranley-Patterson) so
+ * neighbouring pixels do not repeat the same pattern. Dimensions beyond the
+ * prime table fall back to uniform random numbers.
+ *
+ * @author SkidRunner
+ */
+final class HaltonSampler extends Sampler {
+
+    private static final int[] PRIMES = {
+            2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53
+    };
+
+    private final SplittableRandom random;
+    private final int seed;
+
+    private int x;
+    private int y;
+    private int index;
+    private int dimension;
+
+    HaltonSampler(SplittableRandom random, int seed) {
+        this.random = random;
+        this.seed = seed;
+    }
+
+    void start(int x, int y, int index, int count) {
+        this.x = x;
+        this.y = y;
+        this.index = index;
+        dimension = 0;
+    }
+
+    double next() {
+        int d = dimension++;
+
+        if (d >= PRIMES.length) {
+            return random.nextDouble();
+        }
+
+        double value = radicalInverse(index, PRIMES[d]) + toUnit(hash(x, y, d, seed));
+
+        return value < 1 ? value : value - 1;
+    }
+
+    // Mirrors the digits of i in the given base around the radix point.
+    static double radicalInverse(int i, int base) {
+        double inverse = 1.0 / base;
+        double factor = inverse;
+        double value = 0;
+
+        while (i > 0) {
+            value += (i % base) * factor;
+            i /= base;
+            factor *= inverse;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The result of {@link Ray#test}, filled in place so a worker thread can keep
+ * reusing one instance instead of allocating per ray.
+ *
+ * @author SkidRunner
+ */
+final class HitRecord {
+
+    // No hit and the ray goes upward
+    static final int SKY = 0;
+
+    // No sphere hit and the ray goes downward onto the floor
+    static final int FLOOR = 1;
+
+    // A sphere was hit
+    static final int SPHERE = 2;
+
+    int material;
+
+    double distance;
+
+    // The surface normal at the hit, used as the bouncing ray vector.
+    double normalX;
+    double normalY;
+    double normalZ;
+
+    void set(int material, double distance, double normalX, double normalY, double normalZ) {
+        this.material = material;
+        this.distance = distance;
+        this.normalX = normalX;
+        this.normalY = normalY;
+        this.normalZ = normalZ;
+    }
+}
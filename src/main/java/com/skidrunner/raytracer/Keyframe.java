@@ -0,0 +1,43 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Where the camera is at one frame of a sequence, see
+ * {@link SequenceRenderer}. Frames between two keyframes move the camera in
+ * a straight line from one to the other.
+ *
+ * @author SkidRunner
+ */
+final class Keyframe {
+
+    final int frame;
+    final Vector3D rayOrigin;
+    final Vector3D camDirection;
+
+    Keyframe(int frame, Vector3D rayOrigin, Vector3D camDirection) {
+        this.frame = frame;
+        this.rayOrigin = rayOrigin;
+        this.camDirection = camDirection;
+    }
+
+    // The vector a fraction t of the way from one keyframe's to the next.
+    static Vector3D interpolate(Vector3D from, Vector3D to, double t) {
+        return from.scale(1 - t).add(to.scale(t));
+    }
+}
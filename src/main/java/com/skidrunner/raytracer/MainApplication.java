@@ -17,34 +17,43 @@ package com.skidrunner.raytracer;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
 
-import javafx.animation.Animation;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
-import javafx.animation.TimelineBuilder;
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
+import javafx.scene.image.PixelBuffer;
 import javafx.scene.image.PixelFormat;
-import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import javafx.util.Callback;
 import javafx.util.Duration;
 
+import com.skidrunner.javafx.raytracer.RaytraceRenderer;
+
 /**
  * @author SkidRunner
  */
@@ -53,6 +62,11 @@ public class MainApplication extends Application {
     private static final int labelWidth = 140;
     private static final int valueWidth = 45;
 
+    // Interactive previews aim for this frame rate, and the full render
+    // starts once the settings have not changed for SETTLE_MILLIS.
+    private static final int PREVIEW_FRAMES_PER_SECOND = 30;
+    private static final int SETTLE_MILLIS = 400;
+
     class VectorInput {
         private HBox hb;
 
@@ -91,6 +105,18 @@ public class MainApplication extends Application {
             return hb;
         }
 
+        public void setOnAction(EventHandler<ActionEvent> handler) {
+            tfX.setOnAction(handler);
+            tfY.setOnAction(handler);
+            tfZ.setOnAction(handler);
+        }
+
+        public void addListener(InvalidationListener listener) {
+            tfX.textProperty().addListener(listener);
+            tfY.textProperty().addListener(listener);
+            tfZ.textProperty().addListener(listener);
+        }
+
         public Vector3D getVector3f() {
             Vector3D result = null;
 
@@ -110,16 +136,37 @@ public class MainApplication extends Application {
 
     private RenderConfig config = new RenderConfig();
 
+    // What the renderer is tracing: config itself, or a scaled down copy of
+    // it while previewing.
+    private volatile RenderConfig renderConfig = config;
+
+    private final ResolutionScaler previewScaler = new ResolutionScaler(1000.0 / PREVIEW_FRAMES_PER_SECOND, 1 / 16.0);
+    private PauseTransition settle;
+
+    // Shared by every render and published over JMX, see RenderStatsMBean.
+    private final RenderStats stats = new RenderStats();
+
     private GraphicsContext gc;
-    private Ray raytracer;
+    private volatile Ray raytracer;
+    private RaytraceRenderer renderer;
     private WritableImage image;
 
+    // The renderer writes straight into frameBuffer, which image shows
+    // through pixelBuffer, so presenting new pixels needs no copy.
+    private IntBuffer frameBuffer;
+    private PixelBuffer<IntBuffer> pixelBuffer;
+
     private Button btnRayTrace;
     private TextArea taPattern;
 
     private TextField tfRays;
+    private CheckBox cbProgressive;
+    private CheckBox cbInteractive;
+    private CheckBox cbReprojection;
+    private TextField tfNoiseThreshold;
     private TextField tfThreads;
     private TextField tfRenderTime;
+    private ChoiceBox<String> chCostOverlay;
 
     private TextField tfImageWidth;
     private TextField tfImageHeight;
@@ -131,9 +178,14 @@ public class MainApplication extends Application {
     private VectorInput viSkyColour;
 
     private TextField tfSphereReflectivity;
+    private TextField tfMaxDepth;
     private TextField tfBrightness;
+    private TextField tfGamma;
+
+    private AnimationTimer canvasUpdater;
 
-    private Timeline timeline;
+    // Regions drained from the renderer each pulse, four ints per region.
+    private final int[] dirtyRegions = new int[4 * 1024];
 
     private String[] pattern = new String[7];
 
@@ -146,8 +198,26 @@ public class MainApplication extends Application {
     public void start(final Stage stage) {
         this.stage = stage;
 
+        stats.register();
+
+        // -Dcom.skidrunner.raytracer.trace=render.json records a timeline of
+        // every render until the window closes.
+        final String traceFile = System.getProperty(RenderTrace.TRACE_PROPERTY);
+        final RenderTrace trace = traceFile != null ? RenderTrace.start() : null;
+
         stage.setOnCloseRequest(new EventHandler<WindowEvent>() {
             public void handle(WindowEvent arg0) {
+                renderer.stop();
+
+                if (trace != null) {
+                    trace.stop();
+
+                    try {
+                        trace.write(new File(traceFile));
+                    } catch (IOException exception) {
+                        System.err.println("Unable to write " + traceFile + ": " + exception.getMessage());
+                    }
+                }
             }
         });
 
@@ -225,6 +295,7 @@ public class MainApplication extends Application {
         config.setSkyColour(new Vector3D(.4f, .4f, 1f));
         config.setSphereReflectivity(0.5f);
         config.setRays(16);
+        config.setProgressive(true);
 
         // ==============================
         // Image size
@@ -269,6 +340,57 @@ public class MainApplication extends Application {
         hbRays.getChildren().add(lblRays);
         hbRays.getChildren().add(tfRays);
 
+        // ==============================
+        // Progressive rendering
+        // ==============================
+        Label lblProgressive = new Label("Progressive");
+        lblProgressive.setPrefWidth(labelWidth);
+
+        cbProgressive = new CheckBox();
+        cbProgressive.setSelected(config.isProgressive());
+
+        HBox hbProgressive = new HBox();
+        hbProgressive.getChildren().add(lblProgressive);
+        hbProgressive.getChildren().add(cbProgressive);
+
+        // ==============================
+        // Interactive preview
+        // ==============================
+        Label lblInteractive = new Label("Interactive");
+        lblInteractive.setPrefWidth(labelWidth);
+
+        cbInteractive = new CheckBox();
+
+        HBox hbInteractive = new HBox();
+        hbInteractive.getChildren().add(lblInteractive);
+        hbInteractive.getChildren().add(cbInteractive);
+
+        // ==============================
+        // Reuse samples across camera moves
+        // ==============================
+        Label lblReprojection = new Label("Reproject");
+        lblReprojection.setPrefWidth(labelWidth);
+
+        cbReprojection = new CheckBox();
+        cbReprojection.setSelected(config.isReprojection());
+
+        HBox hbReprojection = new HBox();
+        hbReprojection.getChildren().add(lblReprojection);
+        hbReprojection.getChildren().add(cbReprojection);
+
+        // ==============================
+        // Adaptive sampling noise threshold
+        // ==============================
+        Label lblNoiseThreshold = new Label("Noise threshold");
+        lblNoiseThreshold.setPrefWidth(labelWidth);
+
+        tfNoiseThreshold = new TextField(Float.toString(config.getAdaptiveThreshold()));
+        tfNoiseThreshold.setPrefWidth(valueWidth);
+
+        HBox hbNoiseThreshold = new HBox();
+        hbNoiseThreshold.getChildren().add(lblNoiseThreshold);
+        hbNoiseThreshold.getChildren().add(tfNoiseThreshold);
+
         // ==============================
         // Vector3d inputs
         // ==============================
@@ -291,6 +413,19 @@ public class MainApplication extends Application {
         hbReflectivity.getChildren().add(lblReflectivity);
         hbReflectivity.getChildren().add(tfSphereReflectivity);
 
+        // ==============================
+        // Maximum rays per sample
+        // ==============================
+        Label lblMaxDepth = new Label("Max Depth");
+        lblMaxDepth.setPrefWidth(labelWidth);
+
+        tfMaxDepth = new TextField(Integer.toString(config.getMaxDepth()));
+        tfMaxDepth.setPrefWidth(valueWidth);
+
+        HBox hbMaxDepth = new HBox();
+        hbMaxDepth.getChildren().add(lblMaxDepth);
+        hbMaxDepth.getChildren().add(tfMaxDepth);
+
         // ==============================
         // Brightness
         // ==============================
@@ -304,6 +439,19 @@ public class MainApplication extends Application {
         hbBrightness.getChildren().add(lblBrightness);
         hbBrightness.getChildren().add(tfBrightness);
 
+        // ==============================
+        // Gamma
+        // ==============================
+        Label lblGamma = new Label("Gamma");
+        lblGamma.setPrefWidth(labelWidth);
+
+        tfGamma = new TextField(Float.toString(config.getGamma()));
+        tfGamma.setPrefWidth(valueWidth);
+
+        HBox hbGamma = new HBox();
+        hbGamma.getChildren().add(lblGamma);
+        hbGamma.getChildren().add(tfGamma);
+
         // ==============================
         // Render time
         // ==============================
@@ -317,6 +465,29 @@ public class MainApplication extends Application {
         hbRenderTime.getChildren().add(lblRenderTime);
         hbRenderTime.getChildren().add(tfRenderTime);
 
+        // ==============================
+        // Cost overlay
+        // ==============================
+        Label lblCostOverlay = new Label("Cost overlay");
+        lblCostOverlay.setPrefWidth(labelWidth);
+
+        // "None" followed by the CostMetric values in order.
+        chCostOverlay = new ChoiceBox<String>();
+        chCostOverlay.getItems().addAll("None", "Samples", "Sphere tests", "Depth", "Time");
+        chCostOverlay.getSelectionModel().select(0);
+
+        Button btnSaveCost = new Button("Save");
+        btnSaveCost.setOnAction(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                saveCostMap();
+            }
+        });
+
+        HBox hbCostOverlay = new HBox();
+        hbCostOverlay.getChildren().add(lblCostOverlay);
+        hbCostOverlay.getChildren().add(chCostOverlay);
+        hbCostOverlay.getChildren().add(btnSaveCost);
+
         // ==============================
         // Raytrac button
         // ==============================
@@ -328,20 +499,119 @@ public class MainApplication extends Application {
             }
         });
 
+        // Changing a setting while a render is in progress restarts it.
+        EventHandler<ActionEvent> restartIfRunning = new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                if (renderer.isRunning()) {
+                    startRaytracing();
+                }
+            }
+        };
+
+        tfThreads.setOnAction(restartIfRunning);
+        tfRays.setOnAction(restartIfRunning);
+        cbProgressive.setOnAction(restartIfRunning);
+        cbReprojection.setOnAction(restartIfRunning);
+        tfNoiseThreshold.setOnAction(restartIfRunning);
+        viRayOrigin.setOnAction(restartIfRunning);
+        viCamDirection.setOnAction(restartIfRunning);
+        viOddColour.setOnAction(restartIfRunning);
+        viEvenColour.setOnAction(restartIfRunning);
+        viSkyColour.setOnAction(restartIfRunning);
+        tfSphereReflectivity.setOnAction(restartIfRunning);
+        tfMaxDepth.setOnAction(restartIfRunning);
+
+        // In interactive mode every edit to the scene shows a quick low
+        // resolution preview, and the full render follows once the edits
+        // stop.
+        settle = new PauseTransition(Duration.millis(SETTLE_MILLIS));
+        settle.setOnFinished(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                stage.setResizable(false);
+                startRaytracing();
+            }
+        });
+
+        InvalidationListener preview = new InvalidationListener() {
+            public void invalidated(Observable observable) {
+                if (cbInteractive.isSelected()) {
+                    startPreview();
+                }
+            }
+        };
+
+        taPattern.textProperty().addListener(preview);
+        viRayOrigin.addListener(preview);
+        viCamDirection.addListener(preview);
+        viOddColour.addListener(preview);
+        viEvenColour.addListener(preview);
+        viSkyColour.addListener(preview);
+        tfSphereReflectivity.textProperty().addListener(preview);
+        tfMaxDepth.textProperty().addListener(preview);
+
+        // Brightness and gamma only change how the traced samples are shown,
+        // so apply them to the current frame instead of tracing it again.
+        EventHandler<ActionEvent> toneMap = new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                try {
+                    config.setBrightness(Float.parseFloat(tfBrightness.getText()));
+                    config.setGamma(Float.parseFloat(tfGamma.getText()));
+                } catch (NumberFormatException nfe) {
+                    return;
+                }
+
+                if (raytracer != null) {
+                    // A preview is shown with its own ray count, see
+                    // startPreview.
+                    RenderConfig shown = renderConfig;
+
+                    if (shown != config) {
+                        shown.setBrightness(previewBrightness(shown.getRays()));
+                        shown.setGamma(config.getGamma());
+                    }
+
+                    raytracer.toneMap(shown);
+                    updateCanvas();
+                }
+            }
+        };
+
+        tfBrightness.setOnAction(toneMap);
+        tfGamma.setOnAction(toneMap);
+
+        // The cost map is only kept while an overlay is chosen, so choosing
+        // one during a render starts it again to collect it.
+        chCostOverlay.setOnAction(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                if (renderer.isRunning()) {
+                    startRaytracing();
+                } else {
+                    drawCostOverlay();
+                }
+            }
+        });
+
         VBox vBoxControls = new VBox();
 
         vBoxControls.getChildren().add(taPattern);
         vBoxControls.getChildren().add(hbImageSize);
         vBoxControls.getChildren().add(hbThreads);
         vBoxControls.getChildren().add(hbRays);
+        vBoxControls.getChildren().add(hbProgressive);
+        vBoxControls.getChildren().add(hbInteractive);
+        vBoxControls.getChildren().add(hbReprojection);
+        vBoxControls.getChildren().add(hbNoiseThreshold);
         vBoxControls.getChildren().add(viRayOrigin.getHBox());
         vBoxControls.getChildren().add(viCamDirection.getHBox());
         vBoxControls.getChildren().add(viOddColour.getHBox());
         vBoxControls.getChildren().add(viEvenColour.getHBox());
         vBoxControls.getChildren().add(viSkyColour.getHBox());
         vBoxControls.getChildren().add(hbReflectivity);
+        vBoxControls.getChildren().add(hbMaxDepth);
         vBoxControls.getChildren().add(hbBrightness);
+        vBoxControls.getChildren().add(hbGamma);
         vBoxControls.getChildren().add(hbRenderTime);
+        vBoxControls.getChildren().add(hbCostOverlay);
         vBoxControls.getChildren().add(btnRayTrace);
 
         vBoxControls.setMinWidth(controlsWidth);
@@ -350,119 +620,338 @@ public class MainApplication extends Application {
         box.getChildren().add(vBoxControls);
         box.getChildren().add(canvas);
 
+        // Renders on its own thread. stop() makes the workers give up at the
+        // next row, so a new render never waits for a stale one to finish.
+        renderer = new RaytraceRenderer(canvas, box) {
+            @Override
+            protected void render() {
+                final Ray ray = raytracer;
+                final RenderConfig active = renderConfig;
+
+                ray.render(active);
+
+                // A cancelled render is being replaced, leave the canvas and
+                // the updater to the next one.
+                if (isRunning()) {
+                    Platform.runLater(new Runnable() {
+                        public void run() {
+                            // The render may have finished just before a new
+                            // one replaced it, which now owns the canvas.
+                            if (ray != raytracer) {
+                                return;
+                            }
+
+                            updateCanvas();
+                            updateRenderTime();
+                            drawCostOverlay();
+
+                            canvasUpdater.stop();
+
+                            if (active != config) {
+                                previewScaler.update(ray.getRenderTime());
+                            } else {
+                                stage.setResizable(true);
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            protected void cancel() {
+                raytracer.stop();
+            }
+        };
+
         Scene scene = new Scene(box, width, height);
 
         stage.setTitle("JFXRay");
         stage.setScene(scene);
         stage.show();
 
-        int refresh = 500; // ms
-
-        final Duration oneFrameAmt = Duration.millis(refresh);
-
-        final KeyFrame oneFrame = new KeyFrame(oneFrameAmt, new EventHandler<ActionEvent>() {
-            public void handle(ActionEvent arg0) {
+        // Uploads whatever the renderer finished since the last pulse.
+        canvasUpdater = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
                 if (raytracer != null) {
                     updateCanvas();
                 }
             }
-        });
-
-        timeline = TimelineBuilder.create().cycleCount(Animation.INDEFINITE).keyFrames(oneFrame).build();
+        };
     }
 
+    // Aborts the render in progress, if any, and starts a new one with the
+    // current settings.
     private void startRaytracing() {
-        btnRayTrace.setDisable(true);
+        settle.stop();
+        renderer.stop();
 
-        raytracer = new Ray();
+        readSettings();
 
-        Thread t = new Thread(new Runnable() {
-            public void run() {
-                String patternText = taPattern.getText();
-                String[] lines = patternText.split("\n");
+        startRender(config);
+    }
 
-                int maxWidth = 0;
+    // Aborts the render in progress, if any, and traces the current settings
+    // with one ray per pixel at the size previewScaler picked from the
+    // previous previews. The full render starts once the settings have been
+    // left alone for SETTLE_MILLIS.
+    private void startPreview() {
+        renderer.stop();
 
-                for (String line : lines) {
-                    if (line.length() > maxWidth) {
-                        maxWidth = line.length();
-                    }
-                }
+        readSettings();
 
-                for (int i = 0; i < lines.length; i++) {
-                    String line = lines[i];
+        RenderConfig preview = new RenderConfig(config);
+        preview.setImageWidth(previewScaler.scale(config.getImageWidth()));
+        preview.setImageHeight(previewScaler.scale(config.getImageHeight()));
+        preview.setRays(1);
+        preview.setBrightness(previewBrightness(1));
+        preview.setProgressive(false);
+        preview.setAdaptiveThreshold(0);
 
-                    if (line.length() < maxWidth) {
-                        lines[i] = padLine(line, maxWidth);
-                    }
-                }
+        startRender(preview);
+
+        settle.playFromStart();
+    }
 
-                config.setLines(lines);
+    // The brightness that shows a preview of rays per pixel as bright as the
+    // full render. Pixels are published at brightness times rays, so a
+    // one-ray preview at the full render's brightness would come out dark.
+    private float previewBrightness(int rays) {
+        return config.getBrightness() * config.getRays() / rays;
+    }
 
-                try {
-                    config.setThreads(Integer.parseInt(tfThreads.getText()));
-                    config.setRays(Integer.parseInt(tfRays.getText()));
-                    config.setImageWidth(Integer.parseInt(tfImageWidth.getText()));
-                    config.setImageHeight(Integer.parseInt(tfImageHeight.getText()));
-                    config.setSphereReflectivity(Float.parseFloat(tfSphereReflectivity.getText()));
-                    config.setBrightness(Float.parseFloat(tfBrightness.getText()));
+    // Copies the controls into config and sizes the canvas to match.
+    private void readSettings() {
+        PhaseEvent phase = PhaseEvent.start("Config parse");
 
-                    config.setRayOrigin(viRayOrigin.getVector3f());
-                    config.setOddColour(viOddColour.getVector3f());
-                    config.setEvenColour(viEvenColour.getVector3f());
-                    config.setCamDirection(viCamDirection.getVector3f());
-                    config.setSkyColour(viSkyColour.getVector3f());
+        String patternText = taPattern.getText();
+        String[] lines = patternText.split("\n");
 
-                    Platform.runLater(new Runnable() {
-                        public void run() {
-                            canvasWidth = config.getImageWidth();
-                            canvasHeight = config.getImageHeight();
+        int maxWidth = 0;
 
-                            canvas.setWidth(canvasWidth);
-                            canvas.setHeight(canvasHeight);
-                        }
-                    });
+        for (String line : lines) {
+            if (line.length() > maxWidth) {
+                maxWidth = line.length();
+            }
+        }
 
-                } catch (NumberFormatException nfe) {
-                }
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
 
-                timeline.play();
+            if (line.length() < maxWidth) {
+                lines[i] = padLine(line, maxWidth);
+            }
+        }
 
-                image = new WritableImage(config.getImageWidth(), config.getImageHeight());
+        config.setLines(lines);
+
+        try {
+            config.setThreads(Integer.parseInt(tfThreads.getText()));
+            config.setRays(Integer.parseInt(tfRays.getText()));
+            config.setProgressive(cbProgressive.isSelected());
+            config.setReprojection(cbReprojection.isSelected());
+            config.setAdaptiveThreshold(Float.parseFloat(tfNoiseThreshold.getText()));
+            config.setImageWidth(Integer.parseInt(tfImageWidth.getText()));
+            config.setImageHeight(Integer.parseInt(tfImageHeight.getText()));
+            config.setSphereReflectivity(Float.parseFloat(tfSphereReflectivity.getText()));
+            config.setMaxDepth(Integer.parseInt(tfMaxDepth.getText()));
+            config.setCostMap(chCostOverlay.getSelectionModel().getSelectedIndex() > 0);
+            config.setBrightness(Float.parseFloat(tfBrightness.getText()));
+            config.setGamma(Float.parseFloat(tfGamma.getText()));
+
+            config.setRayOrigin(viRayOrigin.getVector3f());
+            config.setOddColour(viOddColour.getVector3f());
+            config.setEvenColour(viEvenColour.getVector3f());
+            config.setCamDirection(viCamDirection.getVector3f());
+            config.setSkyColour(viSkyColour.getVector3f());
+
+            canvasWidth = config.getImageWidth();
+            canvasHeight = config.getImageHeight();
+
+            canvas.setWidth(canvasWidth);
+            canvas.setHeight(canvasHeight);
+        } catch (IllegalArgumentException iae) {
+            // A number that does not parse, or rays below 1, keeps the
+            // settings from there on as they were.
+        }
 
-                raytracer.render(config);
+        phase.finish();
+    }
 
-                Platform.runLater(new Runnable() {
-                    public void run() {
-                        updateCanvas();
+    // Starts tracing renderConfig on the render thread. The canvas always
+    // shows the whole image, a smaller one is scaled up to fill it.
+    private void startRender(RenderConfig renderConfig) {
+        int imageWidth = renderConfig.getImageWidth();
+        int imageHeight = renderConfig.getImageHeight();
+
+        // Keep the frame buffer while the size stays the same, the new
+        // render then paints over the previous frame.
+        if (pixelBuffer == null || pixelBuffer.getWidth() != imageWidth || pixelBuffer.getHeight() != imageHeight) {
+            frameBuffer = Ray.createFrameBuffer(imageWidth, imageHeight);
+            pixelBuffer = new PixelBuffer<IntBuffer>(imageWidth, imageHeight, frameBuffer,
+                    PixelFormat.getIntArgbPreInstance());
+            image = new WritableImage(pixelBuffer);
+        }
 
-                        timeline.stop();
+        // Each render gets a Ray of its own, so the completion of one that
+        // has been replaced can tell it is stale, see render(). It starts
+        // from the samples the last one left.
+        Ray previous = raytracer;
 
-                        btnRayTrace.setDisable(false);
-                        stage.setResizable(true);
-                    }
-                });
+        raytracer = new Ray();
+        raytracer.setFrameBuffer(frameBuffer);
+        raytracer.setStats(stats);
+
+        if (previous != null) {
+            raytracer.setHistory(previous.getHistory());
+        }
+
+        this.renderConfig = renderConfig;
+
+        canvasUpdater.start();
+
+        renderer.start();
+    }
+
+    // Tells the image which parts of the frame buffer the renderer has
+    // finished since the last call and draws just those onto the canvas, so
+    // the time spent here depends on how many pixels changed rather than on
+    // the frame size.
+    private void updateCanvas() {
+        int imageWidth = (int) image.getWidth();
+        int imageHeight = (int) image.getHeight();
+
+        // The render thread may not have set up the new frame yet.
+        if (raytracer.getFrameBuffer() != frameBuffer) {
+            return;
+        }
+
+        int count = raytracer.drainDirtyRegions(dirtyRegions);
+
+        if (count == 0) {
+            return;
+        }
+
+        PhaseEvent phase = PhaseEvent.start("Canvas upload");
+
+        int minX = imageWidth;
+        int minY = imageHeight;
+        int maxX = 0;
+        int maxY = 0;
+
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, dirtyRegions[i * 4]);
+            minY = Math.min(minY, dirtyRegions[i * 4 + 1]);
+            maxX = Math.max(maxX, dirtyRegions[i * 4] + dirtyRegions[i * 4 + 2]);
+            maxY = Math.max(maxY, dirtyRegions[i * 4 + 1] + dirtyRegions[i * 4 + 3]);
+        }
+
+        final Rectangle2D dirty = new Rectangle2D(minX, minY, maxX - minX, maxY - minY);
+
+        pixelBuffer.updateBuffer(new Callback<PixelBuffer<IntBuffer>, Rectangle2D>() {
+            public Rectangle2D call(PixelBuffer<IntBuffer> buffer) {
+                return dirty;
             }
         });
 
-        t.start();
+        double scaleX = (double) canvasWidth / imageWidth;
+        double scaleY = (double) canvasHeight / imageHeight;
+
+        // scale the regions of the image onto Canvas
+        for (int i = 0; i < count; i++) {
+            int left = dirtyRegions[i * 4];
+            int top = dirtyRegions[i * 4 + 1];
+            int width = dirtyRegions[i * 4 + 2];
+            int height = dirtyRegions[i * 4 + 3];
+
+            gc.drawImage(image, left, top, width, height, left * scaleX, top * scaleY, width * scaleX,
+                    height * scaleY);
+
+            phase.pixels += (long) width * height;
+        }
+
+        phase.finish();
+
+        updateRenderTime();
     }
 
-    private void updateCanvas() {
-        byte[] imgData = raytracer.getImageData();
+    // The metric chosen in the cost overlay, or null for none.
+    private CostMetric getCostMetric() {
+        int choice = chCostOverlay.getSelectionModel().getSelectedIndex();
 
-        PixelWriter pixelWriter = image.getPixelWriter();
+        return choice > 0 ? CostMetric.values()[choice - 1] : null;
+    }
 
-        PixelFormat<ByteBuffer> pixelFormat = PixelFormat.getByteRgbInstance();
+    // Draws the whole frame again, with the chosen cost metric blended over
+    // it in false colour if the last render kept a cost map.
+    private void drawCostOverlay() {
+        Ray ray = raytracer;
 
-        // write rgb data to WritableImage
-        pixelWriter.setPixels(0, 0, config.getImageWidth(), config.getImageHeight(), pixelFormat, imgData, 0,
-                config.getImageWidth() * 3);
+        if (ray == null || image == null || ray.getFrameBuffer() != frameBuffer) {
+            return;
+        }
 
-        // scale WritableImage onto Canvas
         gc.drawImage(image, 0, 0, canvasWidth, canvasHeight);
 
-        tfRenderTime.setText(raytracer.getRenderTime() + "ms");
+        CostMap costMap = ray.getCostMap();
+        CostMetric metric = getCostMetric();
+
+        if (costMap == null || metric == null) {
+            return;
+        }
+
+        int width = costMap.getWidth();
+        int height = costMap.getHeight();
+
+        WritableImage overlay = new WritableImage(width, height);
+        overlay.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(),
+                costMap.toColours(metric), 0, width);
+
+        gc.setGlobalAlpha(.6);
+        gc.drawImage(overlay, 0, 0, canvasWidth, canvasHeight);
+        gc.setGlobalAlpha(1);
+    }
+
+    // Asks where to save the chosen cost metric as a false colour image.
+    private void saveCostMap() {
+        Ray ray = raytracer;
+        CostMap costMap = ray != null ? ray.getCostMap() : null;
+        CostMetric metric = getCostMetric();
+
+        if (costMap == null || metric == null) {
+            return;
+        }
+
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Save cost map");
+        chooser.setInitialFileName(metric.name().toLowerCase() + ".png");
+
+        File file = chooser.showSaveDialog(stage);
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            BatchRenderer.writeImage(costMap.getImageData(metric), costMap.getWidth(), costMap.getHeight(), file);
+        } catch (IOException exception) {
+            System.err.println("Unable to write " + file + ": " + exception.getMessage());
+        }
+    }
+
+    private void updateRenderTime() {
+        Ray ray = raytracer;
+        RenderConfig active = renderConfig;
+
+        if (active != config) {
+            tfRenderTime.setText(ray.getRenderTime() + "ms (" + active.getImageWidth() + "x"
+                    + active.getImageHeight() + ")");
+        } else if (config.isProgressive()) {
+            tfRenderTime.setText(ray.getRenderTime() + "ms (" + ray.getCompletedPasses() + "/"
+                    + config.getRays() + ")");
+        } else {
+            tfRenderTime.setText(ray.getRenderTime() + "ms");
+        }
     }
 
     private String padLine(String line, int width) {
@@ -0,0 +1,66 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one phase of a render: parsing the config, building the
+ * scene, starting the workers, the whole render, tone mapping, quantising
+ * the image or uploading it to the canvas. Record them with e.g.
+ * {@code -XX:StartFlightRecording=filename=render.jfr}. Each phase is also
+ * added to the {@link RenderTrace} if one is being recorded.
+ *
+ * @author SkidRunner
+ */
+@Name("com.skidrunner.raytracer.Phase")
+@Label("Render Phase")
+@Category("JFXRay")
+@Description("A phase of rendering a frame")
+final class PhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Pixels")
+    @Description("Pixels the phase covered, if it works on the image")
+    long pixels;
+
+    private transient long start;
+
+    static PhaseEvent start(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    void finish() {
+        end();
+        commit();
+
+        if (RenderTrace.isRecording()) {
+            RenderTrace.record(phase, "phase", start, System.nanoTime(), pixels > 0 ? "\"pixels\":" + pixels : null);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * Independent uniform random numbers. Fast and unbiased, but converges the
+ * slowest of the samplers.
+ *
+ * @author SkidRunner
+ */
+final class RandomSampler extends Sampler {
+
+    private final SplittableRandom random;
+
+    RandomSampler(SplittableRandom random) {
+        this.random = random;
+    }
+
+    void start(int x, int y, int index, int count) {
+    }
+
+    double next() {
+        return random.nextDouble();
+    }
+}
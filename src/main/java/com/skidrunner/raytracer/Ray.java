@@ -17,14 +17,91 @@ package com.skidrunner.raytracer;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import com.sun.javafx.geom.PickRay;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * @author SkidRunner
  */
 public class Ray {
 
-    private byte[] imageData;
+    private static final Vector3D DEFAULT_PIXEL_COLOUR = new Vector3D(16, 16, 16);
+
+    // The camera was laid out for 512 pixel wide images, where a pixel is
+    // .003 wide at unit distance and the lens 64 pixels across. Other sizes
+    // keep the same field of view and lens, with more or fewer pixels.
+    private static final int REFERENCE_WIDTH = 512;
+    private static final float PIXEL_PITCH = .003f;
+    private static final double LENS_PIXELS = 64;
+
+    // Paths whose weight drops below this are ended by Russian roulette.
+    private static final double ROULETTE_WEIGHT = 1 / 16.0;
+
+    // The share of a pixel's samples traced again even when the last render
+    // has them to reuse: most of them on spheres, whose reflections move
+    // with the camera, and a few elsewhere so resampling errors wash out.
+    // Elsewhere it is rounded down, so a one ray preview reuses the floor
+    // and sky outright.
+    private static final double SPHERE_REFRESH = 0.75;
+    private static final double SURFACE_REFRESH = 0.125;
+
+    // The published image, one premultiplied ARGB int per pixel, stored top
+    // down and right to left. Workers write into it directly and the UI
+    // shows it without copying, see createFrameBuffer.
+    private IntBuffer frameBuffer;
+
+    // Sum of all samples traced so far at unit brightness, three floats per
+    // pixel in the same order as the frame buffer. Brightness and gamma are
+    // applied when a pixel is published, so toneMap() can change them
+    // without tracing again.
+    private float[] accumulation;
+
+    private volatile ToneMapper toneMapper;
+
+    // Per pixel sample count and the sums of sample luminance and luminance
+    // squared, for the running mean and variance used by adaptive sampling.
+    private int[] sampleCounts;
+
+    // What each pixel cost to trace, when the config asks for it.
+    private volatile CostMap costMap;
+    private float[] luminance;
+    private float[] luminanceSquared;
+
+    private volatile boolean tracedThisPass;
+
+    // The camera of the current render, set up by begin().
+    private Vector3D cameraA;
+    private Vector3D cameraB;
+    private Vector3D cameraC;
+
+    // The lens in pixels of the current render, LENS_PIXELS scaled with it.
+    private double lensSize;
+
+    // With reprojection on, the last render's samples this one reuses, if
+    // any, and the samples this render is leaving for the next. Renders
+    // without reprojection leave the latter alone.
+    private FrameHistory reused;
+    private FrameHistory history;
+
+    // One flag per tile, set when a row of the tile has been published to
+    // the frame buffer and cleared when drainDirtyRegions hands it to the display.
+    // Assigned last in render(), after the tile layout it depends on.
+    private volatile AtomicIntegerArray dirtyTiles;
+    private int tileSize;
+    private int tilesAcross;
+    private int imageWidth;
+    private int imageHeight;
+
+    private volatile boolean stopRequested;
+    private volatile int completedPasses;
+    private boolean anotherPass;
 
     private boolean[][] data;
     private int rows;
@@ -35,14 +112,29 @@ public class Ray {
     private Vector3D skyColour;
 
     private float sphereReflectivity;
+    private int maxDepth;
 
-    private long renderStart = 0;
-    private long renderTime = 0;
+    private Acceleration acceleration;
+    private SphereHierarchy hierarchy;
+
+    // The spheres packed for the brute force scan, and the kernel that
+    // tests a ray against many of them at once.
+    private SphereSet spheres;
+    private SphereKernel kernel;
+
+    // The pattern the scene above was built from, so renders of the same
+    // scene from other cameras, like the frames of a sequence, reuse it.
+    private String[] sceneLines;
+
+    private RenderStats stats = new RenderStats();
+
+    private volatile long renderStart = 0;
+    private volatile long renderTime = 0;
+    private volatile boolean rendering;
 
     private void init(String[] lines) {
         cols = lines[0].length();
         rows = lines.length;
-        com.sun.javafx.geom.PickRay p = new PickRay();
         data = new boolean[rows][cols];
 
         for (int r = 0; r < rows; r++) {
@@ -54,241 +146,602 @@ public class Ray {
         }
     }
 
-    // The intersection test for line [o,v].
-    // Return 2 if a hit was found (and also return distance t and bouncing ray
-    // n).
-    // Return 0 if no hit was found but ray goes upward
-    // Return 1 if no hit was found but ray goes downward
+    // The intersection test for line [o,d], written into context.hit.
+    // SPHERE if a hit was found (and also the distance t and bouncing ray n).
+    // SKY if no hit was found but ray goes upward
+    // FLOOR if no hit was found but ray goes downward
+    void test(double ox, double oy, double oz, double dx, double dy, double dz, TraceContext context) {
+        HitRecord hit = context.hit;
 
-    // Returns object[] 0 = int (m), 1 = float (t), 2 = Vector3f n
-    Object[] test(Vector3D o, Vector3D d, Vector3D n) {
         double t = 1e9f;
 
-        int m = 0;
+        hit.set(HitRecord.SKY, t, 0, 0, 0);
 
-        double p2 = -o.getZ() / d.getZ();
+        double p2 = -oz / dz;
 
         if (.01 < p2) {
             t = p2;
-            n = new Vector3D(0, 0, 1);
-            m = 1;
+            hit.set(HitRecord.FLOOR, t, 0, 0, 1);
+        }
+
+        int sphere;
+
+        if (acceleration == Acceleration.GRID) {
+            sphere = traverseGrid(ox, oy, oz, dx, dy, dz, t, false, context);
+        } else if (acceleration == Acceleration.BVH) {
+            sphere = hierarchy.intersect(ox, oy, oz, dx, dy, dz, t, context);
+        } else {
+            sphere = scanPattern(ox, oy, oz, dx, dy, dz, t, context);
+        }
+
+        if (sphere >= 0) {
+            // A sphere is closer than the floor, compute the bouncing ray
+            // vector into 'n'
+            int col = sphere % cols;
+            int row = sphere / cols;
+
+            t = intersect(ox, oy, oz, dx, dy, dz, col, row);
+
+            double nx = ox + -col + dx * t;
+            double ny = oy + dy * t;
+            double nz = oz + (-row - 4) + dz * t;
+            double factor = 1 / Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+            hit.set(HitRecord.SPHERE, t, nx * factor, ny * factor, nz * factor);
+        }
+    }
+
+    // True if anything blocks [o,d] nearer than t. Shadow rays only need to
+    // know whether the light is visible, so this stops at the first blocker
+    // found instead of the closest one and computes no normal.
+    boolean occluded(double ox, double oy, double oz, double dx, double dy, double dz, double t, TraceContext context) {
+        double p2 = -oz / dz;
+
+        if (.01 < p2 && p2 < t) {
+            return true;
         }
 
-        for (int col = 0; col < cols; col++) {
-            for (int row = 0; row < rows; row++) {
-                // For this row and column is there a sphere?
-                if (data[row][col]) {
-                    // There is a sphere but does the ray hit it ?
+        if (acceleration == Acceleration.GRID) {
+            return traverseGrid(ox, oy, oz, dx, dy, dz, t, true, context) >= 0;
+        } else if (acceleration == Acceleration.BVH) {
+            return hierarchy.occluded(ox, oy, oz, dx, dy, dz, t, context);
+        } else {
+            context.sphereTests += spheres.size;
+            return kernel.any(spheres, 0, spheres.size, ox, oy, oz, dx, dy, dz, t);
+        }
+    }
+
+    // Distance along [o,d] to the sphere at this column and row of the
+    // pattern, or infinity if the ray misses it or starts inside it.
+    private double intersect(double ox, double oy, double oz, double dx, double dy, double dz, int col, int row) {
+        double px = ox + -col;
+        double py = oy;
+        double pz = oz + (-row - 4);
+
+        double b = px * dx + py * dy + pz * dz;
+        double c = px * px + py * py + pz * pz - 1;
+        double q = b * b - c;
+
+        // Does the ray hit the sphere ?
+        if (q > 0) {
+            double s = -b - Math.sqrt(q);
+
+            if (s > .01) {
+                return s;
+            }
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // Tests every sphere in the pattern. Returns the index (row * cols + col)
+    // of the closest sphere nearer than t, or -1 if there is none.
+    private int scanPattern(double ox, double oy, double oz, double dx, double dy, double dz, double t,
+                            TraceContext context) {
+        context.sphereTests += spheres.size;
+
+        int i = kernel.closest(spheres, 0, spheres.size, ox, oy, oz, dx, dy, dz, t);
+
+        return i >= 0 ? spheres.sphereIndex[i] : -1;
+    }
+
+    // Same result as scanPattern, but walks the ray through the pattern one
+    // cell at a time (3D-DDA flattened to the x/z plane the spheres sit in)
+    // and stops as soon as the next cell starts beyond the closest hit. If
+    // any is set it returns the first sphere hit nearer than t instead.
+    //
+    // The sphere for column c and row r is centred on (c, 0, r + 4) with
+    // radius 1. In grid space (u, v) = (x, z - 4) cell (i, j) covers
+    // [i, i + 1) x [j, j + 1), so only the spheres at columns i, i + 1 and
+    // rows j, j + 1 can reach into it.
+    private int traverseGrid(double ox, double oy, double oz, double dx, double dy, double dz, double t,
+                             boolean any, TraceContext context) {
+        double ou = ox;
+        double ov = oz - 4;
+        double du = dx;
+        double dv = dz;
+
+        // Clip the ray to the box around all spheres.
+        double tEnter = 0;
+        double tExit = t;
+
+        if (du != 0) {
+            double t1 = (-1 - ou) / du;
+            double t2 = (cols - ou) / du;
+            tEnter = Math.max(tEnter, Math.min(t1, t2));
+            tExit = Math.min(tExit, Math.max(t1, t2));
+        } else if (ou < -1 || ou > cols) {
+            return -1;
+        }
+
+        if (dy != 0) {
+            double t1 = (-1 - oy) / dy;
+            double t2 = (1 - oy) / dy;
+            tEnter = Math.max(tEnter, Math.min(t1, t2));
+            tExit = Math.min(tExit, Math.max(t1, t2));
+        } else if (oy < -1 || oy > 1) {
+            return -1;
+        }
+
+        if (dv != 0) {
+            double t1 = (-1 - ov) / dv;
+            double t2 = (rows - ov) / dv;
+            tEnter = Math.max(tEnter, Math.min(t1, t2));
+            tExit = Math.min(tExit, Math.max(t1, t2));
+        } else if (ov < -1 || ov > rows) {
+            return -1;
+        }
+
+        if (tEnter > tExit) {
+            return -1;
+        }
+
+        int i = Math.min(Math.max((int) Math.floor(ou + du * tEnter), -1), cols - 1);
+        int j = Math.min(Math.max((int) Math.floor(ov + dv * tEnter), -1), rows - 1);
+
+        int stepI = du > 0 ? 1 : -1;
+        int stepJ = dv > 0 ? 1 : -1;
+
+        double tDeltaI = du != 0 ? Math.abs(1 / du) : Double.POSITIVE_INFINITY;
+        double tDeltaJ = dv != 0 ? Math.abs(1 / dv) : Double.POSITIVE_INFINITY;
 
-                    Vector3D p = o.add(new Vector3D(-col, 0, -row - 4));
+        double tNextI = du > 0 ? (i + 1 - ou) / du : du < 0 ? (i - ou) / du : Double.POSITIVE_INFINITY;
+        double tNextJ = dv > 0 ? (j + 1 - ov) / dv : dv < 0 ? (j - ov) / dv : Double.POSITIVE_INFINITY;
 
-                    double b = p.dot(d);
-                    double c = p.dot(p) - 1;
-                    double q = b * b - c;
+        int hit = -1;
+        double tCell = tEnter;
 
-                    // Does the ray hit the sphere ?
-                    if (q > 0) {
-                        double s = -b - Math.sqrt(q);
+        while (tCell < t && tCell <= tExit) {
+            for (int col = Math.max(i, 0); col <= i + 1 && col < cols; col++) {
+                for (int row = Math.max(j, 0); row <= j + 1 && row < rows; row++) {
+                    if (data[row][col]) {
+                        double s = intersect(ox, oy, oz, dx, dy, dz, col, row);
+                        context.sphereTests++;
+
+                        if (s < t) {
+                            if (any) {
+                                return row * cols + col;
+                            }
 
-                        if (s < t && s > .01) { // So far this is the minimum distance, save
-                            // it. And // also // compute the bouncing ray
-                            // vector into 'n'
                             t = s;
-                            n = (p.add(d.scale(t))).normalise();
-                            m = 2;
+                            hit = row * cols + col;
                         }
                     }
                 }
             }
+
+            if (tNextI < tNextJ) {
+                tCell = tNextI;
+                tNextI += tDeltaI;
+                i += stepI;
+
+                if (i < -1 || i >= cols) {
+                    break;
+                }
+            } else {
+                tCell = tNextJ;
+                tNextJ += tDeltaJ;
+                j += stepJ;
+
+                if (j < -1 || j >= rows) {
+                    break;
+                }
+            }
         }
-        return new Object[]{m, t, n};
-    }
 
-    // sample the world and return the pixel color for
-    // a ray passing by point o (Origin) and d (Direction)
-    Vector3D sample(Vector3D origin, Vector3D direction) {
-        Vector3D n = new Vector3D(0, 0, 0);
+        return hit;
+    }
 
+    // sample the world and add the color for a ray passing by point o
+    // (Origin) and d (Direction), scaled by weight, to the context colour.
+    void sample(double ox, double oy, double oz, double dx, double dy, double dz,
+                double weight, TraceContext context) {
         // Search for an intersection ray Vs World.
-        Object[] result = test(origin, direction, n);
+        test(ox, oy, oz, dx, dy, dz, context);
 
-        int m = (Integer) result[0];
-        double t = (Double) result[1];
-        n = (Vector3D) result[2];
+        shade(ox, oy, oz, dx, dy, dz, weight, context);
+    }
 
-        if (m == 0) {
-            // No sphere found and the ray goes upward: Generate a sky color
-            return skyColour.scale((float) Math.pow(1 - direction.getZ(), 4));
-        }
+    // The rest of sample() once context.hit holds the intersection for
+    // [o,d], so the packet tracer can hand over each ray's first hit. Each
+    // sphere hit continues along the reflected ray with the weight scaled
+    // by sphereReflectivity, for at most maxDepth rays in all. Once the
+    // weight drops below ROULETTE_WEIGHT the path survives with probability
+    // weight / ROULETTE_WEIGHT and carries on at ROULETTE_WEIGHT, so dim
+    // paths end early without biasing the average.
+    private void shade(double ox, double oy, double oz, double dx, double dy, double dz,
+                       double weight, TraceContext context) {
+        HitRecord hit = context.hit;
+
+        for (int depth = 1; ; depth++) {
+            context.depth = depth;
+
+            int m = hit.material;
+            double t = hit.distance;
+            double nx = hit.normalX;
+            double ny = hit.normalY;
+            double nz = hit.normalZ;
+
+            if (m == HitRecord.SKY) {
+                // No sphere found and the ray goes upward: Generate a sky color
+                double sky = weight * (float) Math.pow(1 - dz, 4);
+                context.addColour(skyColour.getX() * sky, skyColour.getY() * sky, skyColour.getZ() * sky);
+                return;
+            }
 
-        // A sphere was maybe hit.
+            // A sphere was maybe hit.
 
-        // h = intersection coordinate
-        Vector3D h = origin.add(direction.scale(t));
+            // h = intersection coordinate
+            double hx = ox + dx * t;
+            double hy = oy + dy * t;
+            double hz = oz + dz * t;
 
-        // 'l' = direction to light (with random delta for soft-shadows).
-        Vector3D l = new Vector3D(9 + Math.random(), 9 + Math.random(), 16);
+            // 'l' = direction to light (with random delta for soft-shadows).
+            double lx = 9 + context.sampler.next() - hx;
+            double ly = 9 + context.sampler.next() - hy;
+            double lz = 16 - hz;
 
-        l = l.add(h.scale(-1));
+            double light = Math.sqrt(lx * lx + ly * ly + lz * lz);
+            double factor = 1 / light;
+            lx *= factor;
+            ly *= factor;
+            lz *= factor;
 
-        l = l.normalise();
+            // r = The half-vector
+            double reflect = nx * (dx * -2f) + ny * (dy * -2f) + nz * (dz * -2f);
+            double rx = dx + nx * reflect;
+            double ry = dy + ny * reflect;
+            double rz = dz + nz * reflect;
 
-        // r = The half-vector
-        Vector3D r = direction.add(n.scale(n.dot(direction.scale(-2f))));
+            // Calculated the lambertian factor
+            double b = lx * nx + ly * ny + lz * nz;
+
+            // Calculate illumination factor (lambertian coefficient > 0 or in
+            // shadow)?
+            if (b < 0) {
+                b = 0;
+            } else {
+                context.shadowRays++;
 
-        // Calculated the lambertian factor
-        double b = l.dot(n);
+                // Only what lies between h and the light casts a shadow.
+                if (occluded(hx, hy, hz, lx, ly, lz, light, context)) {
+                    b = 0;
+                }
+            }
 
-        // Calculate illumination factor (lambertian coefficient > 0 or in
-        // shadow)?
-        if (b < 0) {
-            b = 0;
-        } else {
-            result = test(h, l, n);
+            if (m == HitRecord.FLOOR) {
+                // No sphere was hit and the ray was going downward:
+                // Generate a floor color
+                int ceil = (int) (Math.ceil(hx / 4) + Math.ceil(hy / 4));
 
-            int res = (Integer) result[0];
-            t = (Double) result[1];
-            n = (Vector3D) result[2];
+                Vector3D floorColour = (ceil & 1) == 1 ? floorColourOdd : floorColourEven;
+                double floor = weight * (b / 4 + .1f);
 
-            if (res > 0) {
-                b = 0;
+                context.addColour(floorColour.getX() * floor, floorColour.getY() * floor, floorColour.getZ() * floor);
+                return;
             }
-        }
 
-        // Calculate the color 'p' with diffuse and specular component
-        Vector3D rdash = r.scale(b > 0 ? 1 : 0);
+            // m == SPHERE A sphere was hit.
+            // Calculate the color 'p' with diffuse and specular component
+            double specular = b > 0 ? 1 : 0;
+            float p = (float) Math.pow(lx * rx * specular + ly * ry * specular + lz * rz * specular, 64);
 
-        float p = (float) Math.pow(l.dot(rdash), 64);
+            context.addColour(p * weight, p * weight, p * weight);
 
-        if (m == 1) {
-            // No sphere was hit and the ray was going downward:
-            h = h.invertScale(4);
+            if (depth >= maxDepth) {
+                return;
+            }
 
-            // Generate a floor color
-            int ceil = (int) (Math.ceil(h.getX()) + Math.ceil(h.getY()));
+            // Cast an ray bouncing from the sphere surface.
+            // Attenuate color since it is bouncing
+            weight *= sphereReflectivity;
 
-            if ((ceil & 1) == 1) {
-                return floorColourOdd.scale(b / 4 + .1f);
-            } else {
-                return floorColourEven.scale(b / 4 + .1f);
+            if (weight < ROULETTE_WEIGHT) {
+                double survival = weight / ROULETTE_WEIGHT;
+
+                if (context.sampler.next() >= survival) {
+                    return;
+                }
+
+                weight = ROULETTE_WEIGHT;
             }
-        }
 
-        // m == 2 A sphere was hit.
-        // Cast an ray bouncing from the sphere surface.
+            ox = hx;
+            oy = hy;
+            oz = hz;
+            dx = rx;
+            dy = ry;
+            dz = rz;
 
-        // Attenuate color since it is bouncing
-        return new Vector3D(p, p, p).add(sample(h, r).scale(sphereReflectivity));
+            context.reflectionRays++;
+            test(ox, oy, oz, dx, dy, dz, context);
+        }
     }
 
+    /**
+     * Returns a copy of the frame buffer as RGB bytes, three per pixel in the
+     * same order, or null before the first render.
+     */
     public byte[] getImageData() {
-        renderTime = System.currentTimeMillis() - renderStart;
+        IntBuffer frame = frameBuffer;
+
+        if (frame == null) {
+            return null;
+        }
+
+        PhaseEvent phase = PhaseEvent.start("Quantise");
+        byte[] imageData = new byte[frame.capacity() * 3];
+
+        for (int i = 0, pixel = 0; i < frame.capacity(); i++) {
+            int argb = frame.get(i);
+
+            imageData[pixel++] = (byte) (argb >> 16);
+            imageData[pixel++] = (byte) (argb >> 8);
+            imageData[pixel++] = (byte) argb;
+        }
+
+        phase.pixels = frame.capacity();
+        phase.finish();
+
         return imageData;
     }
 
+    /**
+     * Allocates an off-heap frame buffer for an image of the given size. The
+     * pixels are premultiplied ARGB ints in native byte order, BGRA in memory
+     * on little-endian machines, which is what
+     * {@code PixelFormat.getIntArgbPreInstance()} expects, so a JavaFX
+     * {@code PixelBuffer} can wrap it directly.
+     */
+    public static IntBuffer createFrameBuffer(int width, int height) {
+        return ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Returns the frame buffer the last render wrote into, or null before
+     * the first render.
+     */
+    public IntBuffer getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    /**
+     * Sets the frame buffer the next render writes into. It is used if it
+     * holds exactly one int per pixel, otherwise render() allocates its own.
+     */
+    public void setFrameBuffer(IntBuffer frameBuffer) {
+        this.frameBuffer = frameBuffer;
+    }
+
     public Ray() {
 
     }
 
-    public void render(final RenderConfig config) {
-        renderStart = System.currentTimeMillis();
+    // Builds the scene and colours from the config without tracing anything,
+    // so test() and sample() can be called on their own.
+    void prepare(RenderConfig config) {
+        PhaseEvent phase = PhaseEvent.start("Scene build");
 
         this.floorColourOdd = config.getOddColour();
         this.floorColourEven = config.getEvenColour();
         this.skyColour = config.getSkyColour();
         this.sphereReflectivity = config.getSphereReflectivity();
+        this.maxDepth = Math.max(1, config.getMaxDepth());
+        this.acceleration = config.getAcceleration();
+
+        if (!Arrays.equals(config.getLines(), sceneLines)) {
+            init(config.getLines());
 
-        init(config.getLines());
+            kernel = SphereKernel.create();
+            spheres = new SphereSet(data, rows, cols);
+            hierarchy = null;
+            sceneLines = config.getLines().clone();
+        }
 
-        imageData = new byte[config.getImageWidth() * config.getImageHeight() * 3];
+        if (acceleration == Acceleration.BVH && hierarchy == null) {
+            hierarchy = new SphereHierarchy(data, rows, cols, kernel);
+        }
+
+        phase.finish();
+    }
+
+    // Sets up the scene, camera and buffers for config: everything render()
+    // does before its workers start. RenderCoordinator and RenderWorker call
+    // it too, and then fill the image a tile at a time.
+    void begin(RenderConfig config) {
+        renderStart = System.currentTimeMillis();
+        rendering = true;
+
+        prepare(config);
+
+        if (frameBuffer == null || frameBuffer.capacity() != config.getImageWidth() * config.getImageHeight()) {
+            frameBuffer = createFrameBuffer(config.getImageWidth(), config.getImageHeight());
+        }
+
+        int width = config.getImageWidth();
+        int height = config.getImageHeight();
 
         // Camera direction
-        final Vector3D g = config.getCamDirection().normalise();
+        Vector3D g = config.getCamDirection().normalise();
+
+        float pitch = PIXEL_PITCH * REFERENCE_WIDTH / width;
 
         // Camera up vector...Seem Z is pointing up :/ WTF !
-        final Vector3D a = new Vector3D(0, 0, 1).cross(g).normalise().scale(.003f);
+        cameraA = new Vector3D(0, 0, 1).cross(g).normalise().scale(pitch);
 
         // The right vector, obtained via traditional cross-product
-        final Vector3D b = g.cross(a).normalise().scale(.003f);
+        cameraB = g.cross(cameraA).normalise().scale(pitch);
 
         // WTF ? See https://news.ycombinator.com/item?id=6425965 for more.
-        final Vector3D c = a.add(b).scale(-256).add(g);
+        // c is the corner of the image, half of it either side of g.
+        cameraC = cameraA.scale(-width / 2.0).add(cameraB.scale(-height / 2.0)).add(g);
+
+        lensSize = LENS_PIXELS * width / REFERENCE_WIDTH;
+
+        toneMapper = new ToneMapper(config.getGamma());
+
+        this.tileSize = Math.max(1, config.getTileSize());
+        this.tilesAcross = (width + tileSize - 1) / tileSize;
+        this.imageWidth = width;
+        this.imageHeight = height;
+        dirtyTiles = new AtomicIntegerArray(tilesAcross * ((height + tileSize - 1) / tileSize));
+
+        accumulation = new float[width * height * 3];
+        sampleCounts = new int[width * height];
+        costMap = config.isCostMap() ? new CostMap(width, height) : null;
+        luminance = new float[width * height];
+        luminanceSquared = new float[width * height];
+
+        if (config.isReprojection()) {
+            reused = history != null && history.matches(config) ? history : null;
+            history = new FrameHistory(config, cameraA, cameraB, cameraC, accumulation, sampleCounts,
+                    luminance, luminanceSquared);
+        } else {
+            reused = null;
+        }
+
+        completedPasses = 0;
+        tracedThisPass = false;
+    }
 
-        final int linesPerThread = config.getImageHeight() / config.getThreads();
+    // Records how long the render took once begin() and the tracing are
+    // done.
+    void end() {
+        renderTime = System.currentTimeMillis() - renderStart;
+        rendering = false;
+        reused = null;
 
-        // System.out.println("LinesPerThread: " + linesPerThread);
+        // Cleared last rather than first, so a stop() that arrives before the
+        // workers get going still cancels this render.
+        stopRequested = false;
+    }
+
+    public void render(final RenderConfig config) {
+        PhaseEvent renderPhase = PhaseEvent.start("Render");
+        renderPhase.pixels = (long) config.getImageWidth() * config.getImageHeight();
+
+        begin(config);
+
+        final Vector3D a = cameraA;
+        final Vector3D b = cameraB;
+        final Vector3D c = cameraC;
+
+        final int width = imageWidth;
+        final int height = imageHeight;
+        final int tileSize = this.tileSize;
+        final int tilesAcross = this.tilesAcross;
+        final int tileCount = getTileCount();
+
+        // A progressive render traces one sample per pixel over the whole
+        // frame in each pass. Adaptive sampling traces the minimum number of
+        // rays per pass so it can stop pixels that have converged, otherwise
+        // a single pass traces them all.
+        final int maximumRays = maximumRays(config);
+        final int raysPerPass = config.isProgressive() ? 1 : minimumRays(config);
+        final int passes = raysPerPass > 0 ? (maximumRays + raysPerPass - 1) / raysPerPass : 0;
+
+        anotherPass = passes > 0;
+
+        // Workers pull the next tile from a shared counter until none are
+        // left, so threads that land on cheap sky tiles just take more of
+        // them instead of idling while others finish the sphere cluster.
+        final AtomicInteger nextTile = new AtomicInteger(0);
+
+        // Once every worker has finished a pass the last one to arrive
+        // decides whether there is another pass, so they all agree.
+        final CyclicBarrier endOfPass = new CyclicBarrier(config.getThreads(), new Runnable() {
+            public void run() {
+                nextTile.set(0);
+                completedPasses++;
+
+                // Stop early once adaptive sampling has every pixel converged.
+                anotherPass = completedPasses < passes && tracedThisPass && !stopRequested;
+                tracedThisPass = false;
+            }
+        });
+
+        // Every worker gets its own sampler, split from one random source so
+        // they never contend on a shared seed.
+        SplittableRandom random = new SplittableRandom();
+        int seed = random.nextInt();
 
         Thread[] workers = new Thread[config.getThreads()];
+        final RenderStats stats = this.stats;
 
-        final Vector3D defaultPixelColour = new Vector3D(16, 16, 16);
+        stats.renderStarted(config.getThreads());
 
-        for (int i = 0; i < config.getThreads(); i++) {
-            final int startingLine = config.getImageHeight() - 1 - (i * linesPerThread);
-            final int pixelBufferOffset = i * linesPerThread;
+        PhaseEvent startPhase = PhaseEvent.start("Worker start");
 
-            // System.out.println("Thread " + i + " plotting " + startingLine);
+        for (int i = 0; i < config.getThreads(); i++) {
+            final int index = i;
+            final TraceContext context = createContext(config, random.split(), seed);
 
             Thread worker = new Thread(new Runnable() {
 
                 public void run() {
-                    int pixel = config.getImageWidth() * pixelBufferOffset * 3;
-
-                    // For each line
-                    for (int y = startingLine; y > startingLine - linesPerThread; y--) {
-                        // For each pixel in a line
-                        for (int x = config.getImageWidth() - 1; x >= 0; x--) {
-                            // Reuse the vector class to store not XYZ but an
-                            // RGB
-                            // pixel color
-                            // Default pixel color is almost pitch black
-                            Vector3D p = defaultPixelColour;
-
-                            // Cast rays per pixel (For blur (stochastic
-                            // sampling) and
-                            // soft-shadows.
-                            for (int r = config.getRays() - 1; r >= 0; r--) {
-                                // The delta to apply to the origin of the view
-                                // (For Depth of View blur).
-
-                                // A little bit of delta up/down and left/right
-                                Vector3D t = a.scale(Math.random() - 0.5f);
-                                t = t.scale(64);
-
-                                Vector3D t2 = b.scale(Math.random() - 0.5f);
-                                t2 = t2.scale(64);
-
-                                t = t.add(t2);
-
-                                // Set the camera focal point and
-                                // Cast the ray
-                                // Accumulate the color returned in the p
-                                // variable
-                                // Ray Direction with random deltas for
-                                // stochastic sampling
-
-                                Vector3D dirA = a.scale(Math.random() + x);
-                                Vector3D dirB = b.scale(Math.random() + y);
-                                Vector3D dirC = dirA.add(dirB).add(c);
-
-                                Vector3D dir = t.scale(-1).add(dirC.scale(16)).normalise();
-
-                                // Ray Origin +p for color accumulation
-                                p = sample(config.getRayOrigin().add(t), dir).scale(config.getBrightness()).add(p);
-
+                    for (int pass = 0; anotherPass; pass++) {
+                        // Check for stop() between tiles so an abandoned
+                        // render frees the CPU without waiting for the pass.
+                        for (int tile = nextTile.getAndIncrement(); tile < tileCount && !stopRequested;
+                             tile = nextTile.getAndIncrement()) {
+                            int left = (tile % tilesAcross) * tileSize;
+                            int top = (tile / tilesAcross) * tileSize;
+                            long tileStart = System.nanoTime();
+                            TileEvent event = TileEvent.start(tile, pass);
+
+                            if (pass == 0 && config.isReprojection()) {
+                                reprojectTile(config, a, b, c, context, maximumRays, left, top,
+                                        Math.min(left + tileSize, width), Math.min(top + tileSize, height));
                             }
 
-                            imageData[pixel++] = (byte) p.getX();
-                            imageData[pixel++] = (byte) p.getY();
-                            imageData[pixel++] = (byte) p.getZ();
+                            renderTile(config, a, b, c, context, Math.min((pass + 1) * raysPerPass, maximumRays), left, top,
+                                    Math.min(left + tileSize, width), Math.min(top + tileSize, height));
+
+                            event.rays = context.primaryRays + context.shadowRays + context.reflectionRays;
+                            event.finish();
+
+                            stats.tileCompleted(index, context, System.nanoTime() - tileStart);
+                        }
+
+                        try {
+                            endOfPass.await();
+                        } catch (InterruptedException ie) {
+                            ie.printStackTrace();
+                            return;
+                        } catch (BrokenBarrierException bbe) {
+                            bbe.printStackTrace();
+                            return;
                         }
                     }
                 }
-            });
+            }, "Render worker " + i);
 
             worker.start();
             workers[i] = worker;
         }
 
+        startPhase.finish();
+
         for (int i = 0; i < config.getThreads(); i++) {
             try {
                 workers[i].join();
@@ -297,10 +750,763 @@ public class Ray {
             }
         }
 
-        renderTime = System.currentTimeMillis() - renderStart;
+        end();
+        stats.renderFinished();
+        renderPhase.finish();
+    }
+
+    // A context for one thread tracing the current render. Contexts for the
+    // same render share seed so stratified samplers agree on their strata.
+    TraceContext createContext(RenderConfig config, SplittableRandom random, int seed) {
+        TraceContext context = new TraceContext(config.getSampling().create(random, seed));
+
+        // Packets walk the hierarchy, so the other accelerations trace one ray
+        // at a time whatever the packet size.
+        if (config.getPacketSize() > 1 && config.getAcceleration() == Acceleration.BVH) {
+            context.packet = new RayPacket(config.getPacketSize());
+            context.packetTracer = PacketTracer.create(hierarchy, config.getPacketSize());
+        }
+
+        return context;
+    }
+
+    // Traces tile pass by pass until its pixels have all their samples, the
+    // way render() would with the whole frame. Several threads may trace
+    // different tiles at once, each with its own context. Adaptive sampling
+    // only sees the samples traced in this Ray, so a tile traced on its own
+    // judges the pixels on its edge from fewer neighbours.
+    void traceTile(RenderConfig config, TraceContext context, int tile) {
+        int left = (tile % tilesAcross) * tileSize;
+        int top = (tile / tilesAcross) * tileSize;
+        int right = Math.min(left + tileSize, imageWidth);
+        int bottom = Math.min(top + tileSize, imageHeight);
+
+        int maximumRays = maximumRays(config);
+        int raysPerPass = config.isProgressive() ? 1 : minimumRays(config);
+
+        for (int limit = raysPerPass; limit > 0 && !stopRequested; limit += raysPerPass) {
+            boolean traced = renderTile(config, cameraA, cameraB, cameraC, context, Math.min(limit, maximumRays),
+                    left, top, right, bottom);
+
+            if (!traced || limit >= maximumRays) {
+                break;
+            }
+        }
+    }
+
+    // Copies out the samples of tile, row by row: three accumulated colour
+    // channels and the sample count for each pixel. Returns the number of
+    // pixels copied.
+    int readTile(int tile, float[] colours, int[] samples) {
+        int left = (tile % tilesAcross) * tileSize;
+        int top = (tile / tilesAcross) * tileSize;
+        int right = Math.min(left + tileSize, imageWidth);
+        int bottom = Math.min(top + tileSize, imageHeight);
+
+        for (int row = top, i = 0; row < bottom; row++) {
+            for (int column = left; column < right; column++, i++) {
+                int index = row * imageWidth + column;
+
+                colours[i * 3] = accumulation[index * 3];
+                colours[i * 3 + 1] = accumulation[index * 3 + 1];
+                colours[i * 3 + 2] = accumulation[index * 3 + 2];
+                samples[i] = sampleCounts[index];
+            }
+        }
+
+        return (right - left) * (bottom - top);
+    }
+
+    // Replaces the samples of tile with ones laid out as readTile() gives
+    // them, traced by another Ray, and publishes its pixels.
+    void writeTile(RenderConfig config, int tile, float[] colours, int[] samples) {
+        int left = (tile % tilesAcross) * tileSize;
+        int top = (tile / tilesAcross) * tileSize;
+        int right = Math.min(left + tileSize, imageWidth);
+        int bottom = Math.min(top + tileSize, imageHeight);
+
+        double scale = config.getBrightness() * config.getRays();
+        ToneMapper toneMapper = this.toneMapper;
+        IntBuffer frame = frameBuffer;
+
+        for (int row = top, i = 0; row < bottom; row++) {
+            for (int column = left; column < right; column++, i++) {
+                int index = row * imageWidth + column;
+
+                accumulation[index * 3] = colours[i * 3];
+                accumulation[index * 3 + 1] = colours[i * 3 + 1];
+                accumulation[index * 3 + 2] = colours[i * 3 + 2];
+                sampleCounts[index] = samples[i];
+
+                publish(frame, index, scale, toneMapper);
+            }
+        }
+
+        dirtyTiles.set(tile, 1);
+    }
+
+    // Tiles in the current render, numbered row by row.
+    int getTileCount() {
+        return dirtyTiles.length();
+    }
+
+    // Pixels in tile, fewer than a full tile on the right and bottom edges.
+    int getTilePixels(int tile) {
+        int left = (tile % tilesAcross) * tileSize;
+        int top = (tile / tilesAcross) * tileSize;
+
+        return (Math.min(left + tileSize, imageWidth) - left) * (Math.min(top + tileSize, imageHeight) - top);
     }
 
+    // Pixels in a full tile, the most readTile() copies out.
+    int getTileSize() {
+        return tileSize * tileSize;
+    }
+
+    // Records the first hit through the centre of each pixel in the given
+    // rows and columns for the next render, and starts each pixel off with
+    // the samples of the last render's pixel that saw the same surface, if
+    // there is one. Costs one ray per pixel without any shading.
+    private void reprojectTile(RenderConfig config, Vector3D a, Vector3D b, Vector3D c, TraceContext context,
+                               int maximumRays, int left, int top, int right, int bottom) {
+        int width = config.getImageWidth();
+        int height = config.getImageHeight();
+        double scale = config.getBrightness() * config.getRays();
+        ToneMapper toneMapper = this.toneMapper;
+        IntBuffer frame = frameBuffer;
+        FrameHistory from = reused;
+        FrameHistory to = history;
+        HitRecord hit = context.hit;
+
+        double ox = config.getRayOrigin().getX();
+        double oy = config.getRayOrigin().getY();
+        double oz = config.getRayOrigin().getZ();
+
+        int sphereLimit = maximumRays - (int) Math.ceil(maximumRays * SPHERE_REFRESH);
+        int surfaceLimit = maximumRays - (int) (maximumRays * SURFACE_REFRESH);
+
+        for (int row = top; row < bottom && !stopRequested; row++) {
+            double y = height - 1 - row + 0.5;
+
+            for (int column = left; column < right; column++) {
+                double x = width - 1 - column + 0.5;
+                int index = row * width + column;
+
+                double dx = a.getX() * x + b.getX() * y + c.getX();
+                double dy = a.getY() * x + b.getY() * y + c.getY();
+                double dz = a.getZ() * x + b.getZ() * y + c.getZ();
+                double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                dx *= factor;
+                dy *= factor;
+                dz *= factor;
+
+                test(ox, oy, oz, dx, dy, dz, context);
+
+                int material = hit.material;
+                double px = dx;
+                double py = dy;
+                double pz = dz;
+
+                if (material != HitRecord.SKY) {
+                    px = ox + dx * hit.distance;
+                    py = oy + dy * hit.distance;
+                    pz = oz + dz * hit.distance;
+                }
+
+                to.hitMaterials[index] = (byte) material;
+                to.hitPoints[index * 3] = (float) px;
+                to.hitPoints[index * 3 + 1] = (float) py;
+                to.hitPoints[index * 3 + 2] = (float) pz;
+                to.hitNormals[index * 3] = (float) hit.normalX;
+                to.hitNormals[index * 3 + 1] = (float) hit.normalY;
+                to.hitNormals[index * 3 + 2] = (float) hit.normalZ;
+
+                int previous = from != null
+                        ? from.find(material, px, py, pz, hit.normalX, hit.normalY, hit.normalZ, hit.distance)
+                        : -1;
+
+                if (previous < 0) {
+                    continue;
+                }
+
+                int samples = from.sampleCounts[previous];
+                int keep = Math.min(samples, material == HitRecord.SPHERE ? sphereLimit : surfaceLimit);
+
+                if (keep <= 0) {
+                    continue;
+                }
+
+                // Scale the sums down to the samples kept, the mean stays.
+                float share = (float) keep / samples;
+
+                accumulation[index * 3] = from.accumulation[previous * 3] * share;
+                accumulation[index * 3 + 1] = from.accumulation[previous * 3 + 1] * share;
+                accumulation[index * 3 + 2] = from.accumulation[previous * 3 + 2] * share;
+                luminance[index] = from.luminance[previous] * share;
+                luminanceSquared[index] = from.luminanceSquared[previous] * share;
+                sampleCounts[index] = keep;
+                to.ages[index] = (byte) (from.ages[previous] + 1);
+
+                publish(frame, index, scale, toneMapper);
+            }
+        }
+
+        dirtyTiles.set((top / tileSize) * tilesAcross + left / tileSize, 1);
+    }
+
+    // Traces the image rows [top, bottom) and columns [left, right) until each
+    // pixel has sampleLimit samples, or fewer once adaptive sampling finds it
+    // has converged. The samples are added to the accumulation buffer and the
+    // pixels published to the frame buffer scaled as if all rays had been
+    // traced.
+    // Rows are stored top down and columns right to left, so image row 0 is
+    // y = height - 1. Returns false once no pixel of the tile needs another
+    // pass.
+    private boolean renderTile(RenderConfig config, Vector3D a, Vector3D b, Vector3D c, TraceContext context,
+                            int sampleLimit, int left, int top, int right, int bottom) {
+        if (context.packet != null) {
+            return renderTilePackets(config, a, b, c, context, sampleLimit, left, top, right, bottom);
+        }
+
+        int width = config.getImageWidth();
+        int height = config.getImageHeight();
+        int rays = config.getRays();
+        int maximumRays = maximumRays(config);
+        double brightness = config.getBrightness();
+        ToneMapper toneMapper = this.toneMapper;
+
+        double threshold = config.getAdaptiveThreshold();
+        int minimumRays = minimumRays(config);
+
+        Vector3D origin = config.getRayOrigin();
+        double lens = lensSize;
+        Sampler sampler = context.sampler;
+        IntBuffer frame = frameBuffer;
+        CostMap costs = costMap;
+
+        int tile = (top / tileSize) * tilesAcross + left / tileSize;
+        boolean traced = false;
+        boolean waiting = false;
+
+        for (int row = top; row < bottom && !stopRequested; row++) {
+            int y = height - 1 - row;
+
+            for (int column = left; column < right; column++) {
+                int x = width - 1 - column;
+                int index = row * width + column;
+
+                if (sampleCounts[index] >= minimumRays && converged(column, row, width, height, rays * brightness, threshold)) {
+                    continue;
+                }
+
+                // Samples reused from the last render can put a pixel ahead
+                // of this pass, it gets more in a later one.
+                if (sampleCounts[index] >= sampleLimit && sampleCounts[index] < maximumRays) {
+                    waiting = true;
+                }
+
+                int firstSample = sampleCounts[index];
+                long pixelStart = costs != null ? System.nanoTime() : 0;
+                long pixelTests = context.sphereTests;
+                int pixelDepth = 0;
+
+                // Cast rays per pixel (For blur (stochastic sampling) and
+                // soft-shadows.
+                for (int r = sampleCounts[index]; r < sampleLimit; r++) {
+                    sampler.start(x, y, r, maximumRays);
+
+                    // Set the camera focal point and cast the ray.
+                    // Ray Direction with random deltas for stochastic
+                    // sampling
+                    double pixelA = sampler.next() + x;
+                    double pixelB = sampler.next() + y;
+
+                    // The delta to apply to the origin of the view (For
+                    // Depth of View blur).
+
+                    // A little bit of delta up/down and left/right
+                    double lensA = (sampler.next() - 0.5f) * lens;
+                    double lensB = (sampler.next() - 0.5f) * lens;
+
+                    double tx = a.getX() * lensA + b.getX() * lensB;
+                    double ty = a.getY() * lensA + b.getY() * lensB;
+                    double tz = a.getZ() * lensA + b.getZ() * lensB;
+
+                    double dx = (a.getX() * pixelA + b.getX() * pixelB + c.getX()) * 16 - tx;
+                    double dy = (a.getY() * pixelA + b.getY() * pixelB + c.getY()) * 16 - ty;
+                    double dz = (a.getZ() * pixelA + b.getZ() * pixelB + c.getZ()) * 16 - tz;
+
+                    double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                    // Accumulate the color of this one sample
+                    context.clearColour();
+                    context.primaryRays++;
+
+                    sample(origin.getX() + tx, origin.getY() + ty, origin.getZ() + tz,
+                            dx * factor, dy * factor, dz * factor, 1, context);
+
+                    accumulate(index, context);
+                    traced = true;
+                    pixelDepth = Math.max(pixelDepth, context.depth);
+                }
+
+                if (costs != null) {
+                    costs.add(index, sampleCounts[index] - firstSample, context.sphereTests - pixelTests, pixelDepth,
+                            System.nanoTime() - pixelStart);
+                }
+
+                publish(frame, index, brightness * rays, toneMapper);
+            }
+
+            // Let the display pick up the tile a row at a time, so slow
+            // tiles still show progress.
+            if (traced) {
+                dirtyTiles.set(tile, 1);
+            }
+        }
+
+        if (traced || waiting) {
+            tracedThisPass = true;
+        }
+
+        return traced || waiting;
+    }
+
+    // renderTile for a worker with a RayPacket: each row of the tile is cut
+    // into runs of packet.size pixels, and the next sample of every pixel in
+    // a run that still needs one is traced as one packet. The packet finds
+    // the first hits, after which the rays split up and are shaded one at a
+    // time, as reflections send them in different directions.
+    private boolean renderTilePackets(RenderConfig config, Vector3D a, Vector3D b, Vector3D c, TraceContext context,
+                                   int sampleLimit, int left, int top, int right, int bottom) {
+        int width = config.getImageWidth();
+        int height = config.getImageHeight();
+        int rays = config.getRays();
+        int maximumRays = maximumRays(config);
+        double brightness = config.getBrightness();
+        ToneMapper toneMapper = this.toneMapper;
+
+        double threshold = config.getAdaptiveThreshold();
+        int minimumRays = minimumRays(config);
+
+        Vector3D origin = config.getRayOrigin();
+        double lens = lensSize;
+        Sampler sampler = context.sampler;
+        IntBuffer frame = frameBuffer;
+        RayPacket packet = context.packet;
+        CostMap costs = costMap;
+
+        int tile = (top / tileSize) * tilesAcross + left / tileSize;
+        boolean traced = false;
+        boolean waiting = false;
+
+        for (int row = top; row < bottom && !stopRequested; row++) {
+            int y = height - 1 - row;
+
+            for (int start = left; start < right; start += packet.size) {
+                int end = Math.min(start + packet.size, right);
+
+                // Pixels adaptive sampling has stopped sit this pass out.
+                for (int column = start; column < end; column++) {
+                    int index = row * width + column;
+                    boolean done = sampleCounts[index] >= minimumRays
+                            && converged(column, row, width, height, rays * brightness, threshold);
+
+                    packet.target[column - start] = done ? 0 : sampleLimit;
+
+                    if (!done && sampleCounts[index] >= sampleLimit && sampleCounts[index] < maximumRays) {
+                        waiting = true;
+                    }
+                }
+
+                while (true) {
+                    int lanes = 0;
+
+                    for (int column = start; column < end; column++) {
+                        int index = row * width + column;
+
+                        if (sampleCounts[index] < packet.target[column - start]) {
+                            primaryRay(a, b, c, origin, lens, width - 1 - column, y, sampleCounts[index],
+                                    maximumRays, sampler, packet, lanes);
+                            packet.pixel[lanes] = index;
+                            lanes++;
+                        }
+                    }
+
+                    if (lanes == 0) {
+                        break;
+                    }
+
+                    long packetStart = costs != null ? System.nanoTime() : 0;
+
+                    packet.count = lanes;
+                    context.packetTracer.intersect(packet);
+                    context.primaryRays += lanes;
+
+                    // Split the first hits' cost evenly between the lanes.
+                    long packetTests = context.packetTracer.sphereTests;
+                    long packetNanos = costs != null ? (System.nanoTime() - packetStart) / lanes : 0;
+                    context.sphereTests += packetTests;
+                    context.packetTracer.sphereTests = 0;
+
+                    for (int lane = 0; lane < lanes; lane++) {
+                        // Replay the four camera dimensions so the shadow
+                        // rays draw the same dimensions as on the scalar path.
+                        sampler.start(packet.x[lane], packet.y[lane], packet.sample[lane], maximumRays);
+
+                        for (int skip = 0; skip < 4; skip++) {
+                            sampler.next();
+                        }
+
+                        double ox = packet.originX[lane];
+                        double oy = packet.originY[lane];
+                        double oz = packet.originZ[lane];
+                        double dx = packet.directionX[lane];
+                        double dy = packet.directionY[lane];
+                        double dz = packet.directionZ[lane];
+                        double t = packet.distance[lane];
+                        int sphere = packet.sphere[lane];
+
+                        if (sphere >= 0) {
+                            double nx = ox + -(sphere % cols) + dx * t;
+                            double ny = oy + dy * t;
+                            double nz = oz + (-(sphere / cols) - 4) + dz * t;
+                            double factor = 1 / Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+                            context.hit.set(HitRecord.SPHERE, t, nx * factor, ny * factor, nz * factor);
+                        } else if (packet.material[lane] == HitRecord.FLOOR) {
+                            context.hit.set(HitRecord.FLOOR, t, 0, 0, 1);
+                        } else {
+                            context.hit.set(HitRecord.SKY, t, 0, 0, 0);
+                        }
+
+                        context.clearColour();
+
+                        long laneStart = costs != null ? System.nanoTime() : 0;
+                        long laneTests = context.sphereTests;
+
+                        shade(ox, oy, oz, dx, dy, dz, 1, context);
+
+                        accumulate(packet.pixel[lane], context);
+
+                        if (costs != null) {
+                            costs.add(packet.pixel[lane], 1, packetTests / lanes + context.sphereTests - laneTests,
+                                    context.depth, packetNanos + System.nanoTime() - laneStart);
+                        }
+                    }
+
+                    traced = true;
+                }
+
+                for (int column = start; column < end; column++) {
+                    if (packet.target[column - start] > 0) {
+                        publish(frame, row * width + column, brightness * rays, toneMapper);
+                    }
+                }
+            }
+
+            if (traced) {
+                dirtyTiles.set(tile, 1);
+            }
+        }
+
+        if (traced || waiting) {
+            tracedThisPass = true;
+        }
+
+        return traced || waiting;
+    }
+
+    // Sets up lane of the packet with the primary ray for sample r of the
+    // pixel at x, y, drawing the jitter in the same order as renderTile.
+    private static void primaryRay(Vector3D a, Vector3D b, Vector3D c, Vector3D origin, double lens, int x, int y,
+                                   int r, int maximumRays, Sampler sampler, RayPacket packet, int lane) {
+        sampler.start(x, y, r, maximumRays);
+
+        double pixelA = sampler.next() + x;
+        double pixelB = sampler.next() + y;
+
+        double lensA = (sampler.next() - 0.5f) * lens;
+        double lensB = (sampler.next() - 0.5f) * lens;
+
+        double tx = a.getX() * lensA + b.getX() * lensB;
+        double ty = a.getY() * lensA + b.getY() * lensB;
+        double tz = a.getZ() * lensA + b.getZ() * lensB;
+
+        double dx = (a.getX() * pixelA + b.getX() * pixelB + c.getX()) * 16 - tx;
+        double dy = (a.getY() * pixelA + b.getY() * pixelB + c.getY()) * 16 - ty;
+        double dz = (a.getZ() * pixelA + b.getZ() * pixelB + c.getZ()) * 16 - tz;
+
+        double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        packet.set(lane, origin.getX() + tx, origin.getY() + ty, origin.getZ() + tz,
+                dx * factor, dy * factor, dz * factor);
+        packet.x[lane] = x;
+        packet.y[lane] = y;
+        packet.sample[lane] = r;
+    }
+
+    // Adds the colour in context as one more sample of the pixel at index.
+    private void accumulate(int index, TraceContext context) {
+        int pixel = index * 3;
+
+        accumulation[pixel] += context.red;
+        accumulation[pixel + 1] += context.green;
+        accumulation[pixel + 2] += context.blue;
+
+        double sampleLuminance = 0.2126 * context.red + 0.7152 * context.green + 0.0722 * context.blue;
+        luminance[index] += sampleLuminance;
+        luminanceSquared[index] += sampleLuminance * sampleLuminance;
+
+        sampleCounts[index]++;
+    }
+
+    // Writes the pixel at index to the frame buffer: its mean sample times
+    // scale, on top of the default colour, through the tone mapper.
+    private void publish(IntBuffer frame, int index, double scale, ToneMapper toneMapper) {
+        int pixel = index * 3;
+        int samples = sampleCounts[index];
+        double exposure = samples > 0 ? scale / samples : 0;
+
+        // Default pixel color is almost pitch black
+        int red = toneMapper.map(DEFAULT_PIXEL_COLOUR.getX() + accumulation[pixel] * exposure);
+        int green = toneMapper.map(DEFAULT_PIXEL_COLOUR.getY() + accumulation[pixel + 1] * exposure);
+        int blue = toneMapper.map(DEFAULT_PIXEL_COLOUR.getZ() + accumulation[pixel + 2] * exposure);
+
+        // Opaque, so premultiplied is the same as straight alpha.
+        frame.put(index, 0xFF000000 | red << 16 | green << 8 | blue);
+    }
+
+    /**
+     * Publishes every pixel again from the accumulation buffer with the
+     * brightness and gamma in config, split over config's threads. This takes
+     * milliseconds where tracing the frame again would take seconds. The
+     * whole frame is marked dirty for drainDirtyRegions.
+     */
+    public void toneMap(final RenderConfig config) {
+        // Read the dirty flags first, render() publishes the layout with them.
+        AtomicIntegerArray dirty = dirtyTiles;
+
+        if (dirty == null) {
+            return;
+        }
+
+        final IntBuffer frame = frameBuffer;
+        final int width = imageWidth;
+        final int height = imageHeight;
+
+        PhaseEvent phase = PhaseEvent.start("Tone map");
+        phase.pixels = (long) width * height;
+
+        final double scale = config.getBrightness() * config.getRays();
+        final ToneMapper mapper = toneMapper.getGamma() == config.getGamma()
+                ? toneMapper : new ToneMapper(config.getGamma());
+        toneMapper = mapper;
+
+        int threads = Math.max(1, Math.min(config.getThreads(), height));
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            // Each worker takes a band of whole rows.
+            final int top = height * i / threads;
+            final int bottom = height * (i + 1) / threads;
+
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int index = top * width; index < bottom * width; index++) {
+                        publish(frame, index, scale, mapper);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+            }
+        }
+
+        for (int tile = 0; tile < dirty.length(); tile++) {
+            dirty.set(tile, 1);
+        }
+
+        phase.finish();
+    }
+
+    // True once the standard error of the pixel's mean luminance, scaled to
+    // output levels the same way the pixel is published, is below threshold.
+    // The variance is the largest of the pixel and its neighbours, so a pixel
+    // whose few samples all happened to agree next to a shadow edge or a
+    // sphere outline is not mistaken for a flat one.
+    private boolean converged(int column, int row, int width, int height, double scale, double threshold) {
+        int n = sampleCounts[row * width + column];
+
+        if (threshold <= 0 || n < 2) {
+            return false;
+        }
+
+        double variance = 0;
+
+        for (int j = Math.max(row - 1, 0); j <= Math.min(row + 1, height - 1); j++) {
+            for (int i = Math.max(column - 1, 0); i <= Math.min(column + 1, width - 1); i++) {
+                int index = j * width + i;
+                int samples = sampleCounts[index];
+
+                if (samples >= 2) {
+                    double mean = luminance[index] / samples;
+                    variance = Math.max(variance, (luminanceSquared[index] - mean * luminance[index]) / (samples - 1));
+                }
+            }
+        }
+
+        return Math.sqrt(variance / n) * scale < threshold;
+    }
+
+    // Samples every pixel gets before adaptive sampling may stop it, enough
+    // for the variance to mean something.
+    private static int minimumRays(RenderConfig config) {
+        if (config.getAdaptiveThreshold() > 0) {
+            return Math.min(Math.max(2, config.getRays() / 4), maximumRays(config));
+        }
+        return maximumRays(config);
+    }
+
+    // Most samples any pixel can get: the ray count, or the adaptive cap when
+    // adaptive sampling is on and one is set. The cap defaults to the ray
+    // count, so adaptive sampling only ever traces fewer rays than fixed
+    // sampling. A higher cap lets noisy pixels go past it, which can cost
+    // more rays than fixed sampling saves elsewhere.
+    private static int maximumRays(RenderConfig config) {
+        if (config.getAdaptiveThreshold() > 0 && config.getMaxRays() > 0) {
+            return config.getMaxRays();
+        }
+        return config.getRays();
+    }
+
+    /**
+     * Returns the number of primary samples traced so far, over all pixels,
+     * or 0 before the first render.
+     */
+    public long getSampleCount() {
+        int[] sampleCounts = this.sampleCounts;
+        long total = 0;
+
+        if (sampleCounts == null) {
+            return 0;
+        }
+
+        for (int count : sampleCounts) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Fills regions with the parts of the image that changed since the last
+     * call, four ints (left, top, width, height) per region in frame buffer
+     * coordinates, and returns the number of regions. Dirty tiles next to
+     * each other in a row of tiles are merged into one region. Regions that
+     * do not fit are left for the next call.
+     */
+    public int drainDirtyRegions(int[] regions) {
+        AtomicIntegerArray dirty = dirtyTiles;
+
+        if (dirty == null) {
+            return 0;
+        }
+
+        int count = 0;
+        int capacity = regions.length / 4;
+
+        for (int tile = 0; tile < dirty.length() && count < capacity; tile++) {
+            if (dirty.getAndSet(tile, 0) == 0) {
+                continue;
+            }
+
+            int first = tile;
+
+            // Extend the region over the dirty tiles to the right of this
+            // one, without wrapping onto the next row of tiles.
+            while ((tile + 1) % tilesAcross != 0 && tile + 1 < dirty.length() && dirty.getAndSet(tile + 1, 0) != 0) {
+                tile++;
+            }
+
+            int left = (first % tilesAcross) * tileSize;
+            int top = (first / tilesAcross) * tileSize;
+            int right = Math.min((tile % tilesAcross + 1) * tileSize, imageWidth);
+            int bottom = Math.min(top + tileSize, imageHeight);
+
+            regions[count * 4] = left;
+            regions[count * 4 + 1] = top;
+            regions[count * 4 + 2] = right - left;
+            regions[count * 4 + 3] = bottom - top;
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Asks a running render to stop at the next row of the tile each worker
+     * is on, leaving the pixels traced so far in the image. Calling it just
+     * before render() cancels that render as well.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Returns the number of passes over the whole frame finished so far.
+     */
+    public int getCompletedPasses() {
+        return completedPasses;
+    }
+
+    /**
+     * Returns how long the last render took in milliseconds, or how long the
+     * one in progress has been running.
+     */
     public long getRenderTime() {
-        return renderTime;
+        return rendering ? System.currentTimeMillis() - renderStart : renderTime;
+    }
+
+    // The samples the last render with reprojection on left behind.
+    FrameHistory getHistory() {
+        return history;
+    }
+
+    // Hands the next render with reprojection on the samples of another
+    // Ray's render to start from.
+    void setHistory(FrameHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Returns what each pixel of the last render cost, or null unless its
+     * config asked for a cost map.
+     */
+    public CostMap getCostMap() {
+        return costMap;
+    }
+
+    /**
+     * Returns the counters renders add to, see {@link RenderStats}.
+     */
+    public RenderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the counters the next render adds to, so they can carry on across
+     * renders, e.g. one instance registered with JMX for the whole
+     * application.
+     */
+    public void setStats(RenderStats stats) {
+        this.stats = stats;
     }
 }
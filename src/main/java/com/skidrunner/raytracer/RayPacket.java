@@ -0,0 +1,100 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A group of up to {@code size} rays traced together by a
+ * {@link PacketTracer}. Lanes [0, count) are in use. Each array holds one
+ * value per lane, so a lane's data can be loaded into SIMD registers
+ * straight from it.
+ *
+ * @author SkidRunner
+ */
+final class RayPacket {
+
+    final int size;
+
+    int count;
+
+    final double[] originX;
+    final double[] originY;
+    final double[] originZ;
+    final double[] directionX;
+    final double[] directionY;
+    final double[] directionZ;
+
+    // Reciprocal directions for the node slab tests.
+    final double[] inverseX;
+    final double[] inverseY;
+    final double[] inverseZ;
+
+    // Filled by PacketTracer: the closest hit along each ray, its material as
+    // in HitRecord and the pattern index of the sphere, or -1.
+    final double[] distance;
+    final int[] material;
+    final int[] sphere;
+
+    // The pixel index, pixel coordinates and sample number each lane traces,
+    // so the samples can be shaded and accumulated after the packet test.
+    final int[] pixel;
+    final int[] x;
+    final int[] y;
+    final int[] sample;
+
+    // Samples each pixel of the run being traced should reach this pass, by
+    // position in the run rather than by lane.
+    final int[] target;
+
+    RayPacket(int size) {
+        this.size = size;
+
+        originX = new double[size];
+        originY = new double[size];
+        originZ = new double[size];
+        directionX = new double[size];
+        directionY = new double[size];
+        directionZ = new double[size];
+
+        inverseX = new double[size];
+        inverseY = new double[size];
+        inverseZ = new double[size];
+
+        distance = new double[size];
+        material = new int[size];
+        sphere = new int[size];
+
+        pixel = new int[size];
+        x = new int[size];
+        y = new int[size];
+        sample = new int[size];
+        target = new int[size];
+    }
+
+    void set(int lane, double ox, double oy, double oz, double dx, double dy, double dz) {
+        originX[lane] = ox;
+        originY[lane] = oy;
+        originZ[lane] = oz;
+        directionX[lane] = dx;
+        directionY[lane] = dy;
+        directionZ[lane] = dz;
+
+        inverseX[lane] = 1 / dx;
+        inverseY[lane] = 1 / dy;
+        inverseZ[lane] = 1 / dz;
+    }
+}
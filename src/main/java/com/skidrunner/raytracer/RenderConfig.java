@@ -27,13 +27,55 @@ public class RenderConfig {
     private int rays;
     private String[] lines;
     private int threads;
+    private int tileSize = 32;
+    private Acceleration acceleration = Acceleration.GRID;
+    private Sampling sampling = Sampling.STRATIFIED;
+    private boolean progressive;
+    private float adaptiveThreshold;
+    private int maxRays;
+    private int packetSize;
+    private boolean costMap;
+    private boolean reprojection;
     private Vector3D rayOrigin;
     private Vector3D camDirection;
     private Vector3D oddColour;
     private Vector3D evenColour;
     private Vector3D skyColour;
     private float sphereReflectivity;
+    private int maxDepth = 8;
     private float brightness;
+    private float gamma = 1;
+
+    public RenderConfig() {
+    }
+
+    // Copies every setting, e.g. to render a variation of this config while
+    // it stays in use elsewhere.
+    public RenderConfig(RenderConfig other) {
+        imageWidth = other.imageWidth;
+        imageHeight = other.imageHeight;
+        rays = other.rays;
+        lines = other.lines;
+        threads = other.threads;
+        tileSize = other.tileSize;
+        acceleration = other.acceleration;
+        sampling = other.sampling;
+        progressive = other.progressive;
+        adaptiveThreshold = other.adaptiveThreshold;
+        maxRays = other.maxRays;
+        packetSize = other.packetSize;
+        costMap = other.costMap;
+        reprojection = other.reprojection;
+        rayOrigin = other.rayOrigin;
+        camDirection = other.camDirection;
+        oddColour = other.oddColour;
+        evenColour = other.evenColour;
+        skyColour = other.skyColour;
+        sphereReflectivity = other.sphereReflectivity;
+        maxDepth = other.maxDepth;
+        brightness = other.brightness;
+        gamma = other.gamma;
+    }
 
     public final int getImageWidth() {
         return imageWidth;
@@ -55,7 +97,12 @@ public class RenderConfig {
         return rays;
     }
 
+    // A render without rays would publish no pixel at all.
     public final void setRays(int rays) {
+        if (rays < 1) {
+            throw new IllegalArgumentException("rays must be at least 1, not " + rays);
+        }
+
         this.rays = rays;
     }
 
@@ -75,6 +122,78 @@ public class RenderConfig {
         this.threads = threads;
     }
 
+    public final int getTileSize() {
+        return tileSize;
+    }
+
+    public final void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public final Acceleration getAcceleration() {
+        return acceleration;
+    }
+
+    public final void setAcceleration(Acceleration acceleration) {
+        this.acceleration = acceleration;
+    }
+
+    public final Sampling getSampling() {
+        return sampling;
+    }
+
+    public final void setSampling(Sampling sampling) {
+        this.sampling = sampling;
+    }
+
+    public final boolean isProgressive() {
+        return progressive;
+    }
+
+    public final void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public final float getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+    public final void setAdaptiveThreshold(float adaptiveThreshold) {
+        this.adaptiveThreshold = adaptiveThreshold;
+    }
+
+    public final int getMaxRays() {
+        return maxRays;
+    }
+
+    public final void setMaxRays(int maxRays) {
+        this.maxRays = maxRays;
+    }
+
+    public final int getPacketSize() {
+        return packetSize;
+    }
+
+    public final void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    public final boolean isCostMap() {
+        return costMap;
+    }
+
+    public final void setCostMap(boolean costMap) {
+        this.costMap = costMap;
+    }
+
+    public final boolean isReprojection() {
+        return reprojection;
+    }
+
+    public final void setReprojection(boolean reprojection) {
+        this.reprojection = reprojection;
+    }
+
     public final Vector3D getRayOrigin() {
         return rayOrigin;
     }
@@ -123,6 +242,14 @@ public class RenderConfig {
         this.sphereReflectivity = sphereReflectivity;
     }
 
+    public final int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public final void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
     public final float getBrightness() {
         return brightness;
     }
@@ -130,4 +257,12 @@ public class RenderConfig {
     public final void setBrightness(float brightness) {
         this.brightness = brightness;
     }
+
+    public final float getGamma() {
+        return gamma;
+    }
+
+    public final void setGamma(float gamma) {
+        this.gamma = gamma;
+    }
 }
@@ -0,0 +1,331 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders a frame by handing its tiles out to {@link RenderWorker}s, which
+ * may be other JVMs on this machine or any other, and putting the pixels
+ * they send back into the frame buffer of a {@link Ray}. The config is sent
+ * once per connection, after that only tile numbers go out and samples come
+ * back, see {@link TileProtocol}.
+ *
+ * Each connection traces one tile at a time and is given the next as soon
+ * as it answers, so faster workers take more tiles and workers can join at
+ * any point of the render. A tile whose worker disconnects or does not
+ * answer within the timeout goes back on the queue. Once the queue is empty
+ * an idle connection takes a copy of a tile still being traced elsewhere,
+ * and whichever answer arrives first is kept, so a slow worker cannot hold
+ * up the end of the render. A worker that is dropped this way opens a new
+ * connection, see {@link RenderWorker}, and is served like one that has
+ * just joined.
+ *
+ * @author SkidRunner
+ */
+final class RenderCoordinator {
+
+    private static final Logger logger = Logger.getLogger(RenderCoordinator.class.getName());
+
+    private final RenderConfig config;
+    private final int port;
+    private final int tileTimeout;
+    private final Ray raytracer = new Ray();
+    private final int seed = new SplittableRandom().nextInt();
+
+    // Guards everything below, and is notified whenever a tile is finished
+    // or given up on.
+    private final Object lock = new Object();
+    private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+    private int[] holders;
+    private long[] handedOut;
+    private boolean[] finished;
+    private int remaining;
+
+    private volatile ServerSocket server;
+
+    // Waits up to tileTimeout milliseconds for each tile before giving it to
+    // another worker. Cost maps and first hits are not sent back by the
+    // workers, so config is rendered without a cost map or reprojection.
+    RenderCoordinator(RenderConfig config, int port, int tileTimeout) {
+        this.config = new RenderConfig(config);
+        this.config.setCostMap(false);
+        this.config.setReprojection(false);
+        this.port = port;
+        this.tileTimeout = tileTimeout;
+    }
+
+    // Renders the frame, returning once every tile has come back. There is
+    // no timeout for workers to connect.
+    Ray render() throws IOException {
+        PhaseEvent renderPhase = PhaseEvent.start("Render");
+        renderPhase.pixels = (long) config.getImageWidth() * config.getImageHeight();
+
+        raytracer.begin(config);
+        raytracer.getStats().renderStarted(0);
+
+        int tileCount = raytracer.getTileCount();
+
+        synchronized (lock) {
+            holders = new int[tileCount];
+            handedOut = new long[tileCount];
+            finished = new boolean[tileCount];
+            remaining = tileCount;
+
+            for (int tile = 0; tile < tileCount; tile++) {
+                pending.add(tile);
+            }
+        }
+
+        server = new ServerSocket(port);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "Coordinator accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        logger.info("Waiting for workers on port " + server.getLocalPort());
+
+        try {
+            synchronized (lock) {
+                while (remaining > 0) {
+                    lock.wait();
+                }
+            }
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        } finally {
+            server.close();
+        }
+
+        raytracer.end();
+        raytracer.getStats().renderFinished();
+        renderPhase.finish();
+
+        return raytracer;
+    }
+
+    private void accept() {
+        for (int connection = 0; ; connection++) {
+            final Socket socket;
+
+            try {
+                socket = server.accept();
+            } catch (SocketException se) {
+                // Closed once the render is done.
+                return;
+            } catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to accept a worker: " + ioe.getMessage());
+                continue;
+            }
+
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "Coordinator connection " + connection);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Hands tiles to the worker at the other end of socket until there are
+    // none left or it goes away.
+    private void serve(Socket socket) {
+        String worker = socket.getRemoteSocketAddress().toString();
+        int tile = -1;
+        int tiles = 0;
+        long busy = 0;
+
+        float[] colours = new float[raytracer.getTileSize() * 3];
+        int[] samples = new int[raytracer.getTileSize()];
+
+        logger.info("Worker " + worker + " connected");
+
+        try {
+            socket.setSoTimeout(tileTimeout);
+            socket.setTcpNoDelay(true);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            TileProtocol.writeHeader(out, seed, config);
+
+            while ((tile = nextTile()) >= 0) {
+                out.writeByte(TileProtocol.TILE);
+                out.writeInt(tile);
+                out.flush();
+
+                if (in.readByte() != TileProtocol.RESULT || in.readInt() != tile) {
+                    throw new IOException("Unexpected answer");
+                }
+
+                busy += in.readLong();
+                long primaryRays = in.readLong();
+                long shadowRays = in.readLong();
+                long reflectionRays = in.readLong();
+                long sphereTests = in.readLong();
+                int pixels = in.readInt();
+
+                if (pixels != raytracer.getTilePixels(tile)) {
+                    throw new IOException("Expected " + raytracer.getTilePixels(tile) + " pixels but found " + pixels);
+                }
+
+                for (int i = 0; i < pixels; i++) {
+                    samples[i] = in.readInt();
+                    colours[i * 3] = in.readFloat();
+                    colours[i * 3 + 1] = in.readFloat();
+                    colours[i * 3 + 2] = in.readFloat();
+                }
+
+                if (claim(tile)) {
+                    raytracer.writeTile(config, tile, colours, samples);
+                    raytracer.getStats().tileReceived(primaryRays, shadowRays, reflectionRays, sphereTests);
+                    finish();
+                }
+
+                tile = -1;
+                tiles++;
+            }
+
+            out.writeByte(TileProtocol.DONE);
+            out.flush();
+        } catch (SocketTimeoutException ste) {
+            logger.log(Level.WARNING, "Dropped worker " + worker + ": no answer for tile " + tile
+                    + " within " + tileTimeout + "ms, it has to reconnect to trace any more");
+
+            if (tile >= 0) {
+                release(tile);
+            }
+        } catch (EOFException eofe) {
+            logger.log(Level.WARNING, "Lost worker " + worker + ": disconnected");
+
+            if (tile >= 0) {
+                release(tile);
+            }
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, "Lost worker " + worker + ": " + ioe.getMessage());
+
+            if (tile >= 0) {
+                release(tile);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // Nothing more to say to it either way.
+            }
+        }
+
+        logger.info("Worker " + worker + " traced " + tiles + " tiles in " + busy / 1000000 + "ms");
+    }
+
+    // The next tile for a connection to trace, or -1 once they are all done.
+    // Waits while every unfinished tile is already being traced twice.
+    private int nextTile() {
+        synchronized (lock) {
+            while (remaining > 0) {
+                Integer next;
+
+                while ((next = pending.poll()) != null) {
+                    if (!finished[next]) {
+                        holders[next]++;
+                        handedOut[next] = System.nanoTime();
+                        return next;
+                    }
+                }
+
+                // Nothing left to hand out, so help with the tile that has
+                // been out longest instead of sitting idle.
+                int oldest = -1;
+
+                for (int tile = 0; tile < finished.length; tile++) {
+                    if (!finished[tile] && holders[tile] == 1
+                            && (oldest < 0 || handedOut[tile] - handedOut[oldest] < 0)) {
+                        oldest = tile;
+                    }
+                }
+
+                if (oldest >= 0) {
+                    holders[oldest]++;
+                    return oldest;
+                }
+
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    return -1;
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    // Returns true if tile was not finished yet, in which case the caller
+    // writes its pixels and then calls finish().
+    private boolean claim(int tile) {
+        synchronized (lock) {
+            holders[tile]--;
+
+            if (finished[tile]) {
+                return false;
+            }
+
+            finished[tile] = true;
+            return true;
+        }
+    }
+
+    private void finish() {
+        synchronized (lock) {
+            remaining--;
+            lock.notifyAll();
+        }
+    }
+
+    // Puts tile back on the queue for the next connection, unless another
+    // one is still tracing it.
+    private void release(int tile) {
+        synchronized (lock) {
+            holders[tile]--;
+
+            if (!finished[tile] && holders[tile] == 0) {
+                pending.addFirst(tile);
+            }
+
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for the work done by {@link Ray} renders. Workers count into
+ * plain fields of their own TraceContext and add them here once per tile, so
+ * the tracing loops never touch shared memory and the shared counters are
+ * striped {@link LongAdder}s that threads do not contend on.
+ *
+ * @author SkidRunner
+ */
+public class RenderStats implements RenderStatsMBean {
+
+    public static final String OBJECT_NAME = "com.skidrunner.raytracer:type=RenderStats";
+
+    private static final Logger logger = Logger.getLogger(RenderStats.class.getName());
+
+    private final LongAdder primaryRays = new LongAdder();
+    private final LongAdder shadowRays = new LongAdder();
+    private final LongAdder reflectionRays = new LongAdder();
+    private final LongAdder sphereTests = new LongAdder();
+    private final LongAdder tilesCompleted = new LongAdder();
+    private final LongAdder rendersCompleted = new LongAdder();
+
+    // Nanoseconds each worker of the current render spent on tiles.
+    private volatile AtomicLongArray workerBusy = new AtomicLongArray(0);
+    private volatile long renderStart;
+    private volatile long renderEnd;
+
+    // The window getRaysPerSecond() measures over.
+    private long windowStart = System.nanoTime();
+    private long windowRays;
+    private double raysPerSecond;
+
+    /**
+     * Registers these stats with the platform MBean server under
+     * {@link #OBJECT_NAME}, replacing any registered before. Returns false
+     * and logs why if that is not possible.
+     */
+    public boolean register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return true;
+        } catch (JMException exception) {
+            logger.log(Level.WARNING, "Unable to register render stats: " + exception.getMessage());
+            return false;
+        }
+    }
+
+    void renderStarted(int workers) {
+        workerBusy = new AtomicLongArray(workers);
+        renderStart = System.nanoTime();
+        renderEnd = 0;
+    }
+
+    void renderFinished() {
+        renderEnd = System.nanoTime();
+        rendersCompleted.increment();
+    }
+
+    // Adds what a worker counted while tracing a tile, which took busy
+    // nanoseconds, and clears its counters.
+    void tileCompleted(int worker, TraceContext context, long busy) {
+        primaryRays.add(context.primaryRays);
+        shadowRays.add(context.shadowRays);
+        reflectionRays.add(context.reflectionRays);
+        sphereTests.add(context.sphereTests);
+        tilesCompleted.increment();
+
+        context.primaryRays = 0;
+        context.shadowRays = 0;
+        context.reflectionRays = 0;
+        context.sphereTests = 0;
+
+        workerBusy.addAndGet(worker, busy);
+    }
+
+    // Adds what a worker in another process counted while tracing a tile,
+    // see RenderCoordinator. Its time is not counted against any worker.
+    void tileReceived(long primaryRays, long shadowRays, long reflectionRays, long sphereTests) {
+        this.primaryRays.add(primaryRays);
+        this.shadowRays.add(shadowRays);
+        this.reflectionRays.add(reflectionRays);
+        this.sphereTests.add(sphereTests);
+        tilesCompleted.increment();
+    }
+
+    public long getPrimaryRays() {
+        return primaryRays.sum();
+    }
+
+    public long getShadowRays() {
+        return shadowRays.sum();
+    }
+
+    public long getReflectionRays() {
+        return reflectionRays.sum();
+    }
+
+    public long getSphereTests() {
+        return sphereTests.sum();
+    }
+
+    public long getTilesCompleted() {
+        return tilesCompleted.sum();
+    }
+
+    public long getRendersCompleted() {
+        return rendersCompleted.sum();
+    }
+
+    public synchronized double getRaysPerSecond() {
+        long now = System.nanoTime();
+
+        // Shorter windows would mostly measure how the tiles happened to
+        // line up with the calls.
+        if (now - windowStart >= 1000000000L) {
+            long rays = getPrimaryRays() + getShadowRays() + getReflectionRays();
+
+            raysPerSecond = (rays - windowRays) * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowRays = rays;
+        }
+
+        return raysPerSecond;
+    }
+
+    public long[] getWorkerBusyMillis() {
+        AtomicLongArray busy = workerBusy;
+        long[] millis = new long[busy.length()];
+
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = busy.get(i) / 1000000;
+        }
+
+        return millis;
+    }
+
+    public long[] getWorkerIdleMillis() {
+        AtomicLongArray busy = workerBusy;
+        long elapsed = elapsed();
+        long[] millis = new long[busy.length()];
+
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = Math.max(0, elapsed - busy.get(i)) / 1000000;
+        }
+
+        return millis;
+    }
+
+    public double[] getWorkerUtilisation() {
+        AtomicLongArray busy = workerBusy;
+        long elapsed = elapsed();
+        double[] utilisation = new double[busy.length()];
+
+        for (int i = 0; i < utilisation.length; i++) {
+            utilisation[i] = elapsed > 0 ? Math.min(1, (double) busy.get(i) / elapsed) : 0;
+        }
+
+        return utilisation;
+    }
+
+    public synchronized void reset() {
+        primaryRays.reset();
+        shadowRays.reset();
+        reflectionRays.reset();
+        sphereTests.reset();
+        tilesCompleted.reset();
+        rendersCompleted.reset();
+
+        windowStart = System.nanoTime();
+        windowRays = 0;
+        raysPerSecond = 0;
+    }
+
+    // Nanoseconds the current render has been running, or the last one ran.
+    private long elapsed() {
+        long start = renderStart;
+        long end = renderEnd;
+
+        if (start == 0) {
+            return 0;
+        }
+
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+}
@@ -0,0 +1,59 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Management interface of {@link RenderStats}, so the render counters can be
+ * watched from JConsole or any other JMX client. Counts run from when the
+ * stats were created or last reset, the worker figures cover the render in
+ * progress or the last one.
+ *
+ * @author SkidRunner
+ */
+public interface RenderStatsMBean {
+
+    long getPrimaryRays();
+
+    long getShadowRays();
+
+    long getReflectionRays();
+
+    long getSphereTests();
+
+    long getTilesCompleted();
+
+    long getRendersCompleted();
+
+    /**
+     * Rays of all kinds traced per second, measured over the time since this
+     * was last asked for, or over the last second if that was more recent.
+     */
+    double getRaysPerSecond();
+
+    long[] getWorkerBusyMillis();
+
+    long[] getWorkerIdleMillis();
+
+    /**
+     * The fraction of the render so far each worker spent tracing tiles
+     * rather than waiting for the others at the end of a pass.
+     */
+    double[] getWorkerUtilisation();
+
+    void reset();
+}
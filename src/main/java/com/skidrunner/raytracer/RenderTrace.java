@@ -0,0 +1,153 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Timeline of the render phases and tiles in the Chrome trace event format,
+ * which chrome://tracing and Perfetto load. The same spans are always
+ * emitted as JFR events, see {@link PhaseEvent} and {@link TileEvent}; this
+ * is for when a flight recording is not at hand.
+ *
+ * Nothing is kept until {@link #start()} is called, after which every span
+ * on any thread is recorded until {@link #stop()}.
+ *
+ * @author SkidRunner
+ */
+final class RenderTrace {
+
+    // Set to a file name to have MainApplication write a trace on exit.
+    static final String TRACE_PROPERTY = "com.skidrunner.raytracer.trace";
+
+    private static volatile RenderTrace active;
+
+    private final long origin = System.nanoTime();
+    private final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<String>();
+    private final Map<Long, String> threads = new ConcurrentHashMap<Long, String>();
+
+    private RenderTrace() {
+    }
+
+    // Starts recording into a new trace, replacing the one in progress.
+    static RenderTrace start() {
+        RenderTrace trace = new RenderTrace();
+        active = trace;
+        return trace;
+    }
+
+    static boolean isRecording() {
+        return active != null;
+    }
+
+    void stop() {
+        if (active == this) {
+            active = null;
+        }
+    }
+
+    // Records a span from start to end (System.nanoTime()) on the calling
+    // thread. args is the inside of a JSON object, or null.
+    static void record(String name, String category, long start, long end, String args) {
+        RenderTrace trace = active;
+
+        if (trace == null) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        long id = thread.getId();
+
+        if (!trace.threads.containsKey(id)) {
+            trace.threads.put(id, thread.getName());
+        }
+
+        StringBuilder event = new StringBuilder(160);
+        event.append("{\"name\":\"").append(name)
+                .append("\",\"cat\":\"").append(category)
+                .append("\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(id)
+                .append(",\"ts\":").append((start - trace.origin) / 1000.0)
+                .append(",\"dur\":").append((end - start) / 1000.0);
+
+        if (args != null) {
+            event.append(",\"args\":{").append(args).append('}');
+        }
+
+        trace.events.add(event.append('}').toString());
+    }
+
+    void write(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+
+        try {
+            out.write("{\"traceEvents\":[\n");
+
+            boolean first = true;
+
+            // Name the threads so the viewer shows workers rather than ids.
+            for (Map.Entry<Long, String> thread : threads.entrySet()) {
+                if (!first) {
+                    out.write(",\n");
+                }
+                first = false;
+
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+                        + ",\"args\":{\"name\":\"" + escape(thread.getValue()) + "\"}}");
+            }
+
+            for (String event : events) {
+                if (!first) {
+                    out.write(",\n");
+                }
+                first = false;
+
+                out.write(event);
+            }
+
+            out.write("\n]}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+
+            if (ch == '"' || ch == '\\') {
+                escaped.append('\\').append(ch);
+            } else if (ch < ' ') {
+                escaped.append(String.format("\\u%04x", (int) ch));
+            } else {
+                escaped.append(ch);
+            }
+        }
+
+        return escaped.toString();
+    }
+}
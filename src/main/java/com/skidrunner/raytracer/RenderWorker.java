@@ -0,0 +1,238 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.SplittableRandom;
+
+/**
+ * Traces tiles for a {@link RenderCoordinator}:
+ *
+ * <pre>
+ * RenderWorker host port [connections]
+ * </pre>
+ *
+ * Opens connections to the coordinator, one per core by default, and traces
+ * whatever tiles it hands out on each until it says the frame is done. All
+ * connections share one copy of the scene and frame. If the coordinator is
+ * not listening yet the worker keeps trying for a minute, so workers can be
+ * started first. A connection lost part way through the frame, for instance
+ * because the coordinator timed it out, is opened again and picks up
+ * tiles like any new one.
+ *
+ * @author SkidRunner
+ */
+public class RenderWorker {
+
+    private static final int CONNECT_ATTEMPTS = 60;
+    private static final int CONNECT_INTERVAL = 1000;
+    // Fewer tries to get back in, the coordinator stops listening once the
+    // frame is done.
+    private static final int RECONNECT_ATTEMPTS = 5;
+
+    private final String host;
+    private final int port;
+
+    // Set up by the first connection to hear from the coordinator.
+    private Ray raytracer;
+    private int seed;
+    private Object[] tileLocks;
+
+    public RenderWorker(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Traces tiles over the given number of connections until the
+    // coordinator is done with all of them.
+    public void run(int connections) {
+        Thread[] threads = new Thread[connections];
+
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int attempts = CONNECT_ATTEMPTS;
+
+                        while (!serve(attempts)) {
+                            System.err.println("Reconnecting to " + host + ":" + port);
+                            attempts = RECONNECT_ATTEMPTS;
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println("Unable to work for " + host + ":" + port + ": " + ioe.getMessage());
+                    }
+                }
+            }, "Render worker " + i);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+            }
+        }
+    }
+
+    // Traces tiles over one connection. Returns true once the coordinator
+    // says the frame is done, or false if the connection was lost while
+    // tracing, in which case it may still want more tiles. Throws if the
+    // coordinator cannot be reached or is not one to work for.
+    private boolean serve(int attempts) throws IOException {
+        Socket socket = connect(attempts);
+
+        try {
+            socket.setTcpNoDelay(true);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            int seed = TileProtocol.readHeader(in);
+            RenderConfig config = TileProtocol.readConfig(in);
+            Ray raytracer = begin(seed, config);
+            TraceContext context = raytracer.createContext(config, new SplittableRandom(), seed);
+
+            float[] colours = new float[raytracer.getTileSize() * 3];
+            int[] samples = new int[raytracer.getTileSize()];
+
+            try {
+                while (in.readByte() == TileProtocol.TILE) {
+                    int tile = in.readInt();
+
+                    if (tile < 0 || tile >= raytracer.getTileCount()) {
+                        throw new IOException("No tile " + tile);
+                    }
+
+                    long start = System.nanoTime();
+                    int pixels;
+
+                    // The coordinator may hand the same tile to two connections.
+                    // The second finds every pixel already has its samples and
+                    // sends them back without tracing any more.
+                    synchronized (tileLocks[tile]) {
+                        raytracer.traceTile(config, context, tile);
+                        pixels = raytracer.readTile(tile, colours, samples);
+                    }
+
+                    out.writeByte(TileProtocol.RESULT);
+                    out.writeInt(tile);
+                    out.writeLong(System.nanoTime() - start);
+                    out.writeLong(context.primaryRays);
+                    out.writeLong(context.shadowRays);
+                    out.writeLong(context.reflectionRays);
+                    out.writeLong(context.sphereTests);
+                    out.writeInt(pixels);
+
+                    for (int i = 0; i < pixels; i++) {
+                        out.writeInt(samples[i]);
+                        out.writeFloat(colours[i * 3]);
+                        out.writeFloat(colours[i * 3 + 1]);
+                        out.writeFloat(colours[i * 3 + 2]);
+                    }
+
+                    out.flush();
+
+                    context.primaryRays = 0;
+                    context.shadowRays = 0;
+                    context.reflectionRays = 0;
+                    context.sphereTests = 0;
+                }
+            } catch (EOFException eofe) {
+                System.err.println("Lost coordinator " + host + ":" + port + ": disconnected");
+                return false;
+            } catch (IOException ioe) {
+                System.err.println("Lost coordinator " + host + ":" + port + ": " + ioe.getMessage());
+                return false;
+            }
+
+            return true;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect(int attempts) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Socket(host, port);
+            } catch (ConnectException ce) {
+                if (attempt == attempts) {
+                    throw ce;
+                }
+            }
+
+            try {
+                Thread.sleep(CONNECT_INTERVAL);
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted while connecting");
+            }
+        }
+    }
+
+    // Sets up the scene and frame the first time the coordinator sends
+    // them, the other connections share them.
+    private synchronized Ray begin(int seed, RenderConfig config) throws IOException {
+        if (raytracer == null) {
+            raytracer = new Ray();
+            raytracer.begin(config);
+
+            this.seed = seed;
+            this.tileLocks = new Object[raytracer.getTileCount()];
+
+            for (int i = 0; i < tileLocks.length; i++) {
+                tileLocks[i] = new Object();
+            }
+        } else if (seed != this.seed) {
+            throw new IOException("Already tracing another render");
+        }
+
+        return raytracer;
+    }
+
+    public static void main(String[] arguments) {
+        if (arguments.length < 2 || arguments.length > 3) {
+            System.err.println("Usage: RenderWorker host port [connections]");
+            System.exit(1);
+            return;
+        }
+
+        int port;
+        int connections;
+
+        try {
+            port = Integer.parseInt(arguments[1]);
+            connections = arguments.length > 2
+                    ? Integer.parseInt(arguments[2])
+                    : Runtime.getRuntime().availableProcessors();
+        } catch (NumberFormatException exception) {
+            System.err.println("Invalid setting: " + exception.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        new RenderWorker(arguments[0], port).run(connections);
+    }
+}
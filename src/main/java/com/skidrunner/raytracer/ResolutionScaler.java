@@ -0,0 +1,58 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Picks the fraction of the full image size to render interactive previews
+ * at. After each preview the scale is nudged toward the size that would have
+ * taken the target frame time, assuming the cost of a frame grows with its
+ * pixel count, i.e. with the square of the scale.
+ *
+ * @author SkidRunner
+ */
+final class ResolutionScaler {
+
+    private final double targetMillis;
+    private final double minimumScale;
+
+    private double scale;
+
+    ResolutionScaler(double targetMillis, double minimumScale) {
+        this.targetMillis = targetMillis;
+        this.minimumScale = minimumScale;
+        this.scale = Math.max(minimumScale, .25);
+    }
+
+    double getScale() {
+        return scale;
+    }
+
+    // Records how long a preview at the current scale took. Only half of
+    // the correction is applied so a single slow frame (a GC pause, the JIT
+    // warming up) does not make the preview jump in size.
+    void update(long frameMillis) {
+        double ideal = scale * Math.sqrt(targetMillis / Math.max(1, frameMillis));
+
+        scale = Math.min(1, Math.max(minimumScale, scale + (ideal - scale) / 2));
+    }
+
+    // Scales one side of the full image, never below one pixel.
+    int scale(int size) {
+        return Math.max(1, (int) Math.round(size * scale));
+    }
+}
@@ -0,0 +1,60 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Source of the random numbers used to trace one sample. Each render worker
+ * owns its own sampler, so there is no shared state between threads.
+ *
+ * Every call to {@link #next()} draws from the next dimension of the current
+ * sample. Ray uses them in a fixed order: pixel jitter (two dimensions), lens
+ * jitter (two dimensions), then the soft shadow light offset (two dimensions)
+ * for each surface the sample hits, followed by one dimension for the Russian
+ * roulette draw after a sphere once the path's weight is low enough.
+ *
+ * @author SkidRunner
+ */
+abstract class Sampler {
+
+    /**
+     * Starts sample {@code index} of the {@code count} samples taken for the
+     * pixel at {@code x}, {@code y}.
+     */
+    abstract void start(int x, int y, int index, int count);
+
+    /**
+     * Returns a value in [0, 1) from the next dimension of the current sample.
+     */
+    abstract double next();
+
+    // Mixes a pixel, dimension and seed into 32 well distributed bits, so
+    // per pixel scrambling needs no stored state.
+    static int hash(int x, int y, int dimension, int seed) {
+        int h = seed;
+        h = (h ^ x) * 0x85EBCA6B;
+        h = (h ^ (h >>> 13) ^ y) * 0xC2B2AE35;
+        h = (h ^ (h >>> 16) ^ dimension) * 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    static double toUnit(int bits) {
+        return (bits >>> 8) * 0x1.0p-24;
+    }
+}
@@ -0,0 +1,59 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * Which {@link Sampler} the render workers draw their random numbers from.
+ *
+ * @author SkidRunner
+ */
+public enum Sampling {
+
+    /**
+     * Independent uniform random numbers.
+     */
+    RANDOM {
+        Sampler create(SplittableRandom random, int seed) {
+            return new RandomSampler(random);
+        }
+    },
+
+    /**
+     * Jittered stratified samples, one stratum per ray in each dimension.
+     */
+    STRATIFIED {
+        Sampler create(SplittableRandom random, int seed) {
+            return new StratifiedSampler(random, seed);
+        }
+    },
+
+    /**
+     * Randomly rotated Halton sequence.
+     */
+    HALTON {
+        Sampler create(SplittableRandom random, int seed) {
+            return new HaltonSampler(random, seed);
+        }
+    };
+
+    // The random source belongs to one worker, the seed is shared by the
+    // whole render so a pixel is scrambled the same whichever worker traces it.
+    abstract Sampler create(SplittableRandom random, int seed);
+}
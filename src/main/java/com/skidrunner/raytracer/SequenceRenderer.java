@@ -0,0 +1,255 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Renders the frames of a camera move with one {@link Ray}, so the scene is
+ * built once for the whole sequence. The camera follows {@link Keyframe}s.
+ *
+ * Quantising and writing a frame happens on a thread of its own while the
+ * next frame traces. The encoder works from a copy of the frame buffer and
+ * the tracer is only held up if the encoder falls two frames behind.
+ *
+ * The frames go to one YUV4MPEG2 stream if the output name ends in
+ * {@code .y4m}. Otherwise each frame goes to a file of its own, named by
+ * formatting the output name with the frame number, as in
+ * {@code frame%04d.png}.
+ *
+ * @author SkidRunner
+ */
+final class SequenceRenderer {
+
+    // Frames the tracer may get ahead of the encoder.
+    private static final int BUFFERED_FRAMES = 2;
+
+    private final RenderConfig config;
+    private final Keyframe[] keyframes;
+    private final int frames;
+    private final int frameRate;
+    private final Ray raytracer = new Ray();
+
+    // Keyframes must be in frame order.
+    SequenceRenderer(RenderConfig config, Keyframe[] keyframes, int frames, int frameRate) {
+        if (keyframes.length == 0) {
+            throw new IllegalArgumentException("No keyframes");
+        }
+
+        for (int i = 1; i < keyframes.length; i++) {
+            if (keyframes[i].frame <= keyframes[i - 1].frame) {
+                throw new IllegalArgumentException("Keyframes out of order at frame " + keyframes[i].frame);
+            }
+        }
+
+        this.config = config;
+        this.keyframes = keyframes;
+        this.frames = frames;
+        this.frameRate = frameRate;
+    }
+
+    // The config for frame, with the camera placed between the keyframes
+    // either side of it. Before the first or after the last keyframe the
+    // camera stays put.
+    RenderConfig frameConfig(int frame) {
+        Keyframe from = keyframes[0];
+        Keyframe to = keyframes[0];
+
+        for (Keyframe keyframe : keyframes) {
+            if (keyframe.frame <= frame) {
+                from = keyframe;
+            }
+
+            to = keyframe;
+
+            if (keyframe.frame >= frame) {
+                break;
+            }
+        }
+
+        double t = to.frame > from.frame ? (double) (frame - from.frame) / (to.frame - from.frame) : 0;
+        RenderConfig frameConfig = new RenderConfig(config);
+
+        frameConfig.setRayOrigin(Keyframe.interpolate(from.rayOrigin, to.rayOrigin, t));
+        frameConfig.setCamDirection(Keyframe.interpolate(from.camDirection, to.camDirection, t));
+
+        return frameConfig;
+    }
+
+    // Renders every frame into output and returns the Ray, which holds the
+    // last frame and the stats for them all.
+    Ray render(File output) throws IOException {
+        int width = config.getImageWidth();
+        int height = config.getImageHeight();
+
+        final FrameEncoder encoder = new FrameEncoder(output, width, height);
+
+        // The encoder hands each buffer back once it is done with it, so
+        // there are never more than BUFFERED_FRAMES of them.
+        final BlockingQueue<int[]> encode = new ArrayBlockingQueue<int[]>(BUFFERED_FRAMES + 1);
+        final BlockingQueue<int[]> free = new ArrayBlockingQueue<int[]>(BUFFERED_FRAMES);
+
+        for (int i = 0; i < BUFFERED_FRAMES; i++) {
+            free.add(new int[width * height]);
+        }
+
+        Thread encoderThread = new Thread(new Runnable() {
+            public void run() {
+                encoder.run(encode, free);
+            }
+        }, "Frame encoder");
+        encoderThread.start();
+
+        try {
+            for (int frame = 0; frame < frames && encoder.failure == null; frame++) {
+                raytracer.render(frameConfig(frame));
+
+                int[] pixels = free.take();
+                IntBuffer frameBuffer = raytracer.getFrameBuffer().duplicate();
+
+                frameBuffer.clear();
+                frameBuffer.get(pixels);
+                encode.put(pixels);
+            }
+
+            // An empty frame tells the encoder there are no more.
+            encode.put(new int[0]);
+            encoderThread.join();
+        } catch (InterruptedException ie) {
+            encoderThread.interrupt();
+            throw new IOException("Interrupted while rendering the sequence");
+        }
+
+        if (encoder.failure != null) {
+            throw encoder.failure;
+        }
+
+        return raytracer;
+    }
+
+    /**
+     * The second stage of the pipeline, turning frame buffer copies into
+     * RGB or YUV bytes and writing them out.
+     */
+    private final class FrameEncoder {
+
+        private final File output;
+        private final int width;
+        private final int height;
+        private final boolean stream;
+
+        volatile IOException failure;
+
+        FrameEncoder(File output, int width, int height) {
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.stream = output.getName().toLowerCase().endsWith(".y4m");
+        }
+
+        void run(BlockingQueue<int[]> encode, BlockingQueue<int[]> free) {
+            OutputStream out = null;
+            byte[] data = new byte[width * height * 3];
+
+            try {
+                if (stream) {
+                    out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+                    out.write(("YUV4MPEG2 W" + width + " H" + height + " F" + frameRate + ":1 Ip A1:1 C444\n")
+                            .getBytes("US-ASCII"));
+                }
+
+                for (int frame = 0; ; frame++) {
+                    int[] pixels = encode.take();
+
+                    if (pixels.length == 0) {
+                        break;
+                    }
+
+                    PhaseEvent phase = PhaseEvent.start("Encode");
+
+                    if (stream) {
+                        toYCbCr(pixels, data);
+                        out.write("FRAME\n".getBytes("US-ASCII"));
+                        out.write(data);
+                    } else {
+                        toRGB(pixels, data);
+                        BatchRenderer.writeImage(data, width, height,
+                                new File(String.format(output.getPath(), frame)));
+                    }
+
+                    phase.pixels = pixels.length;
+                    phase.finish();
+
+                    free.put(pixels);
+                }
+            } catch (IOException ioe) {
+                failure = ioe;
+            } catch (InterruptedException ie) {
+                failure = new IOException("Interrupted while encoding");
+            } finally {
+                // Keep the tracer from waiting on a buffer that will never
+                // come back.
+                free.offer(new int[width * height]);
+
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ioe) {
+                        if (failure == null) {
+                            failure = ioe;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void toRGB(int[] pixels, byte[] data) {
+            for (int i = 0, pixel = 0; i < pixels.length; i++) {
+                int argb = pixels[i];
+
+                data[pixel++] = (byte) (argb >> 16);
+                data[pixel++] = (byte) (argb >> 8);
+                data[pixel++] = (byte) argb;
+            }
+        }
+
+        // Planar 4:4:4 in the studio range of BT.601, which is what players
+        // assume a Y4M stream without a colour range holds.
+        private void toYCbCr(int[] pixels, byte[] data) {
+            int size = pixels.length;
+
+            for (int i = 0; i < size; i++) {
+                int argb = pixels[i];
+                int red = (argb >> 16) & 0xFF;
+                int green = (argb >> 8) & 0xFF;
+                int blue = argb & 0xFF;
+
+                data[i] = (byte) (((66 * red + 129 * green + 25 * blue + 128) >> 8) + 16);
+                data[size + i] = (byte) (((-38 * red - 74 * green + 112 * blue + 128) >> 8) + 128);
+                data[size * 2 + i] = (byte) (((112 * red - 94 * green - 18 * blue + 128) >> 8) + 128);
+            }
+        }
+    }
+}
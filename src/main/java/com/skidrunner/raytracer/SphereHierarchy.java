@@ -0,0 +1,273 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.skidrunner.math.BoundingBox;
+
+/**
+ * Bounding volume hierarchy over the unit spheres of a pattern. The tree is
+ * built with {@link BoundingBox} and then flattened into primitive arrays in
+ * depth first order, so traversal never touches an object.
+ *
+ * @author SkidRunner
+ */
+final class SphereHierarchy {
+
+    private static final int LEAF_SIZE = 4;
+    static final int MAX_DEPTH = 64;
+
+    // The spheres in leaf order. These and the node arrays are read directly
+    // by PacketTracer.
+    final SphereSet spheres;
+
+    private final SphereKernel kernel;
+
+    // Six bounds per node: minimum x, y, z then maximum x, y, z. A leaf has a
+    // count > 0 and owns spheres [offset, offset + count). An interior node
+    // has its first child directly after it, its second child at offset, and
+    // was split on axis.
+    double[] bounds;
+    int[] offset;
+    int[] count;
+    int[] axis;
+    int nodes;
+
+    SphereHierarchy(boolean[][] data, int rows, int cols, SphereKernel kernel) {
+        this.spheres = new SphereSet(data, rows, cols);
+        this.kernel = kernel;
+
+        int capacity = Math.max(1, 2 * spheres.size);
+
+        bounds = new double[capacity * 6];
+        offset = new int[capacity];
+        count = new int[capacity];
+        axis = new int[capacity];
+
+        if (spheres.size > 0) {
+            build(0, spheres.size);
+        }
+    }
+
+    private int build(int start, int end) {
+        int node = nodes++;
+
+        BoundingBox box = new BoundingBox();
+        BoundingBox centres = new BoundingBox();
+
+        box.setMinimum(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+        box.setMaximum(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        centres.setMinimum(box.getMinimum());
+        centres.setMaximum(box.getMaximum());
+
+        double[] centreX = spheres.centreX;
+        double[] centreY = spheres.centreY;
+        double[] centreZ = spheres.centreZ;
+        double[] radius = spheres.radius;
+
+        for (int i = start; i < end; i++) {
+            extend(box, centreX[i] - radius[i], centreY[i] - radius[i], centreZ[i] - radius[i]);
+            extend(box, centreX[i] + radius[i], centreY[i] + radius[i], centreZ[i] + radius[i]);
+            extend(centres, centreX[i], centreY[i], centreZ[i]);
+        }
+
+        int b = node * 6;
+        bounds[b] = box.getMinimum().x;
+        bounds[b + 1] = box.getMinimum().y;
+        bounds[b + 2] = box.getMinimum().z;
+        bounds[b + 3] = box.getMaximum().x;
+        bounds[b + 4] = box.getMaximum().y;
+        bounds[b + 5] = box.getMaximum().z;
+
+        if (end - start <= LEAF_SIZE) {
+            offset[node] = start;
+            count[node] = end - start;
+            return node;
+        }
+
+        // Split at the median centre along the widest axis of the centres.
+        double extentX = centres.getMaximum().x - centres.getMinimum().x;
+        double extentY = centres.getMaximum().y - centres.getMinimum().y;
+        double extentZ = centres.getMaximum().z - centres.getMinimum().z;
+
+        int split = extentX >= extentY && extentX >= extentZ ? 0 : extentY >= extentZ ? 1 : 2;
+        double[] keys = split == 0 ? centreX : split == 1 ? centreY : centreZ;
+
+        int middle = (start + end) >>> 1;
+        select(keys, start, end - 1, middle);
+
+        axis[node] = split;
+        count[node] = 0;
+
+        build(start, middle);
+        offset[node] = build(middle, end);
+
+        return node;
+    }
+
+    private static void extend(BoundingBox box, double x, double y, double z) {
+        com.skidrunner.math.Vector3D minimum = box.getMinimum();
+        com.skidrunner.math.Vector3D maximum = box.getMaximum();
+
+        box.setMinimum(Math.min(minimum.x, x), Math.min(minimum.y, y), Math.min(minimum.z, z));
+        box.setMaximum(Math.max(maximum.x, x), Math.max(maximum.y, y), Math.max(maximum.z, z));
+    }
+
+    // Quickselect so that keys[k] is in its sorted position, everything in
+    // [left, k) is no greater and everything in (k, right] is no smaller.
+    private void select(double[] keys, int left, int right, int k) {
+        while (left < right) {
+            double pivot = keys[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    spheres.swap(i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Slab test of [o,d] against a node, using the reciprocal direction.
+    // Returns the entry distance, or infinity if the ray misses the node or
+    // only reaches it after t.
+    private double enter(int node, double ox, double oy, double oz,
+                         double ix, double iy, double iz, double t) {
+        int b = node * 6;
+
+        double tx1 = (bounds[b] - ox) * ix;
+        double tx2 = (bounds[b + 3] - ox) * ix;
+        double ty1 = (bounds[b + 1] - oy) * iy;
+        double ty2 = (bounds[b + 4] - oy) * iy;
+        double tz1 = (bounds[b + 2] - oz) * iz;
+        double tz2 = (bounds[b + 5] - oz) * iz;
+
+        double tmin = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.max(Math.min(tz1, tz2), 0));
+        double tmax = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.min(Math.max(tz1, tz2), t));
+
+        return tmin <= tmax ? tmin : Double.POSITIVE_INFINITY;
+    }
+
+    // Returns the pattern index (row * cols + col) of the closest sphere
+    // nearer than t, or -1 if there is none. Children are visited near to
+    // far and any node that starts beyond the closest hit is skipped, so a
+    // ray that misses the root box costs a single slab test. The spheres
+    // tested are counted in the context.
+    int intersect(double ox, double oy, double oz, double dx, double dy, double dz, double t,
+                  TraceContext context) {
+        if (nodes == 0) {
+            return -1;
+        }
+
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+
+        int[] stack = context.stack;
+        int top = 0;
+        stack[top++] = 0;
+
+        int hit = -1;
+
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (enter(node, ox, oy, oz, ix, iy, iz, t) == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+
+            if (count[node] > 0) {
+                context.sphereTests += count[node];
+
+                int i = kernel.closest(spheres, offset[node], offset[node] + count[node], ox, oy, oz, dx, dy, dz, t);
+
+                if (i >= 0) {
+                    t = spheres.distance(i, ox, oy, oz, dx, dy, dz);
+                    hit = spheres.sphereIndex[i];
+                }
+            } else {
+                int first = node + 1;
+                int second = offset[node];
+                double direction = axis[node] == 0 ? dx : axis[node] == 1 ? dy : dz;
+
+                // Push the far child first so the near one is visited next.
+                if (direction < 0) {
+                    stack[top++] = first;
+                    stack[top++] = second;
+                } else {
+                    stack[top++] = second;
+                    stack[top++] = first;
+                }
+            }
+        }
+
+        return hit;
+    }
+
+    // True if [o,d] hits any sphere nearer than t. Children are visited in
+    // any order and the walk ends at the first leaf with a hit.
+    boolean occluded(double ox, double oy, double oz, double dx, double dy, double dz, double t,
+                     TraceContext context) {
+        if (nodes == 0) {
+            return false;
+        }
+
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+
+        int[] stack = context.stack;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (enter(node, ox, oy, oz, ix, iy, iz, t) == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+
+            if (count[node] > 0) {
+                context.sphereTests += count[node];
+
+                if (kernel.any(spheres, offset[node], offset[node] + count[node], ox, oy, oz, dx, dy, dz, t)) {
+                    return true;
+                }
+            } else {
+                stack[top++] = offset[node];
+                stack[top++] = node + 1;
+            }
+        }
+
+        return false;
+    }
+}
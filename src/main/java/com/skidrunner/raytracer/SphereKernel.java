@@ -0,0 +1,78 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Tests one ray against a run of spheres in a {@link SphereSet} and keeps a
+ * running minimum of the distance, or for shadow rays stops at the first
+ * hit. Ray uses it to scan the whole pattern and SphereHierarchy for its
+ * leaves.
+ *
+ * {@link #create} returns a kernel that tests as many spheres per
+ * instruction as the CPU's vector registers hold when the
+ * {@code jdk.incubator.vector} module is present, and this class's plain
+ * loop otherwise.
+ *
+ * @author SkidRunner
+ */
+class SphereKernel {
+
+    static SphereKernel create() {
+        SphereKernel kernel = (SphereKernel) VectorSupport.create("com.skidrunner.raytracer.VectorSphereKernel",
+                true, new Class<?>[0]);
+
+        return kernel != null ? kernel : new SphereKernel();
+    }
+
+    /**
+     * Returns true if this kernel uses SIMD instructions.
+     */
+    boolean isVectorised() {
+        return false;
+    }
+
+    // Returns the position in spheres of the closest of spheres [start, end)
+    // that [o,d] hits nearer than t, or -1 if there is none.
+    int closest(SphereSet spheres, int start, int end,
+                double ox, double oy, double oz, double dx, double dy, double dz, double t) {
+        int hit = -1;
+
+        for (int i = start; i < end; i++) {
+            double s = spheres.distance(i, ox, oy, oz, dx, dy, dz);
+
+            if (s < t) {
+                t = s;
+                hit = i;
+            }
+        }
+
+        return hit;
+    }
+
+    // True if [o,d] hits any of spheres [start, end) nearer than t.
+    boolean any(SphereSet spheres, int start, int end,
+                double ox, double oy, double oz, double dx, double dy, double dz, double t) {
+        for (int i = start; i < end; i++) {
+            if (spheres.distance(i, ox, oy, oz, dx, dy, dz) < t) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
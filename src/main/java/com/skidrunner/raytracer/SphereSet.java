@@ -0,0 +1,116 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The spheres of a pattern compiled into packed arrays, one entry per
+ * sphere, so a kernel can load the centres of several spheres into one
+ * SIMD register.
+ *
+ * @author SkidRunner
+ */
+final class SphereSet {
+
+    final int size;
+
+    final double[] centreX;
+    final double[] centreY;
+    final double[] centreZ;
+    final double[] radius;
+
+    // The pattern index (row * cols + col) each sphere came from.
+    final int[] sphereIndex;
+
+    // The sphere for column c and row r of the pattern is centred on
+    // (c, 0, r + 4) with radius 1.
+    SphereSet(boolean[][] data, int rows, int cols) {
+        int spheres = 0;
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (data[row][col]) {
+                    spheres++;
+                }
+            }
+        }
+
+        size = spheres;
+        centreX = new double[spheres];
+        centreY = new double[spheres];
+        centreZ = new double[spheres];
+        radius = new double[spheres];
+        sphereIndex = new int[spheres];
+
+        int i = 0;
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (data[row][col]) {
+                    centreX[i] = col;
+                    centreY[i] = 0;
+                    centreZ[i] = row + 4;
+                    radius[i] = 1;
+                    sphereIndex[i] = row * cols + col;
+                    i++;
+                }
+            }
+        }
+    }
+
+    // Distance along [o,d] to sphere i, or infinity if the ray misses it or
+    // starts inside it.
+    double distance(int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+        double px = ox + -centreX[i];
+        double py = oy + -centreY[i];
+        double pz = oz + -centreZ[i];
+
+        double b = px * dx + py * dy + pz * dz;
+        double c = px * px + py * py + pz * pz - radius[i] * radius[i];
+        double q = b * b - c;
+
+        if (q > 0) {
+            double s = -b - Math.sqrt(q);
+
+            if (s > .01) {
+                return s;
+            }
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    void swap(int i, int j) {
+        double x = centreX[i];
+        double y = centreY[i];
+        double z = centreZ[i];
+        double r = radius[i];
+        int index = sphereIndex[i];
+
+        centreX[i] = centreX[j];
+        centreY[i] = centreY[j];
+        centreZ[i] = centreZ[j];
+        radius[i] = radius[j];
+        sphereIndex[i] = sphereIndex[j];
+
+        centreX[j] = x;
+        centreY[j] = y;
+        centreZ[j] = z;
+        radius[j] = r;
+        sphereIndex[j] = index;
+    }
+}
@@ -0,0 +1,92 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * Jittered stratified samples. For each pixel and dimension the range [0, 1)
+ * is split into one stratum per sample, and the samples of that pixel visit
+ * the strata in a different pseudo random order per dimension (a Latin
+ * hypercube), with a random offset inside each stratum.
+ *
+ * @author SkidRunner
+ */
+final class StratifiedSampler extends Sampler {
+
+    private final SplittableRandom random;
+    private final int seed;
+
+    private int x;
+    private int y;
+    private int index;
+    private int count;
+    private int dimension;
+
+    StratifiedSampler(SplittableRandom random, int seed) {
+        this.random = random;
+        this.seed = seed;
+    }
+
+    void start(int x, int y, int index, int count) {
+        this.x = x;
+        this.y = y;
+        this.index = index;
+        this.count = count;
+        dimension = 0;
+    }
+
+    double next() {
+        int stratum = permute(index, count, hash(x, y, dimension++, seed));
+        return (stratum + random.nextDouble()) / count;
+    }
+
+    // Kensler's hash based permutation of [0, length), from "Correlated
+    // Multi-Jittered Sampling". Returns where i goes for permutation p.
+    static int permute(int i, int length, int p) {
+        int w = length - 1;
+        w |= w >>> 1;
+        w |= w >>> 2;
+        w |= w >>> 4;
+        w |= w >>> 8;
+        w |= w >>> 16;
+
+        do {
+            i ^= p;
+            i *= 0xe170893d;
+            i ^= p >>> 16;
+            i ^= (i & w) >>> 4;
+            i ^= p >>> 8;
+            i *= 0x0929eb3f;
+            i ^= p >>> 23;
+            i ^= (i & w) >>> 1;
+            i *= 1 | p >>> 27;
+            i *= 0x6935fa69;
+            i ^= (i & w) >>> 11;
+            i *= 0x74dcb303;
+            i ^= (i & w) >>> 2;
+            i *= 0x9e501cc3;
+            i ^= (i & w) >>> 2;
+            i *= 0xc860a3df;
+            i &= w;
+            i ^= i >>> 5;
+        } while (i >= length);
+
+        return (int) (((i + p) & 0xFFFFFFFFL) % length);
+    }
+}
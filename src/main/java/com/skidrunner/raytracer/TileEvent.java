@@ -0,0 +1,72 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a render worker tracing one tile in one pass. JFR records
+ * the worker's thread with it, so a recording shows how evenly the tiles
+ * were spread. Each tile is also added to the {@link RenderTrace} if one is
+ * being recorded.
+ *
+ * @author SkidRunner
+ */
+@Name("com.skidrunner.raytracer.Tile")
+@Label("Render Tile")
+@Category("JFXRay")
+@Description("A render worker tracing one tile")
+@StackTrace(false)
+final class TileEvent extends Event {
+
+    @Label("Tile")
+    int tile;
+
+    @Label("Pass")
+    int pass;
+
+    @Label("Rays")
+    @Description("Primary, shadow and reflection rays traced")
+    long rays;
+
+    private transient long start;
+
+    static TileEvent start(int tile, int pass) {
+        TileEvent event = new TileEvent();
+        event.tile = tile;
+        event.pass = pass;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    void finish() {
+        end();
+        commit();
+
+        if (RenderTrace.isRecording()) {
+            RenderTrace.record("Tile", "tile", start, System.nanoTime(),
+                    "\"tile\":" + tile + ",\"pass\":" + pass + ",\"rays\":" + rays);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The messages {@link RenderCoordinator} and {@link RenderWorker} exchange
+ * over TCP, as written by {@link DataOutputStream}. The coordinator starts
+ * each connection with the magic number, the version and the render:
+ *
+ * <pre>
+ * coordinator: MAGIC VERSION seed config
+ * coordinator: TILE tile          ...or DONE
+ * worker:      RESULT tile nanos primaryRays shadowRays reflectionRays
+ *              sphereTests pixels (samples red green blue) * pixels
+ * </pre>
+ *
+ * A worker answers every TILE with a RESULT for it before it reads the next
+ * message, and closes the connection on DONE.
+ *
+ * @author SkidRunner
+ */
+final class TileProtocol {
+
+    static final int MAGIC = 0x534b4944;
+    static final int VERSION = 1;
+
+    static final int TILE = 1;
+    static final int DONE = 2;
+    static final int RESULT = 3;
+
+    private TileProtocol() {
+    }
+
+    static void writeHeader(DataOutputStream out, int seed, RenderConfig config) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(seed);
+        writeConfig(out, config);
+    }
+
+    // Reads the header and returns the seed, after checking the connection
+    // is from a coordinator that speaks this version.
+    static int readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a render coordinator");
+        }
+
+        int version = in.readInt();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+
+        return in.readInt();
+    }
+
+    static void writeConfig(DataOutputStream out, RenderConfig config) throws IOException {
+        out.writeInt(config.getImageWidth());
+        out.writeInt(config.getImageHeight());
+        out.writeInt(config.getRays());
+
+        String[] lines = config.getLines();
+        out.writeInt(lines.length);
+
+        for (String line : lines) {
+            out.writeUTF(line);
+        }
+
+        out.writeInt(config.getThreads());
+        out.writeInt(config.getTileSize());
+        out.writeUTF(config.getAcceleration().name());
+        out.writeUTF(config.getSampling().name());
+        out.writeBoolean(config.isProgressive());
+        out.writeFloat(config.getAdaptiveThreshold());
+        out.writeInt(config.getMaxRays());
+        out.writeInt(config.getPacketSize());
+        out.writeBoolean(config.isCostMap());
+        writeVector(out, config.getRayOrigin());
+        writeVector(out, config.getCamDirection());
+        writeVector(out, config.getOddColour());
+        writeVector(out, config.getEvenColour());
+        writeVector(out, config.getSkyColour());
+        out.writeFloat(config.getSphereReflectivity());
+        out.writeInt(config.getMaxDepth());
+        out.writeFloat(config.getBrightness());
+        out.writeFloat(config.getGamma());
+    }
+
+    static RenderConfig readConfig(DataInputStream in) throws IOException {
+        RenderConfig config = new RenderConfig();
+
+        config.setImageWidth(in.readInt());
+        config.setImageHeight(in.readInt());
+        config.setRays(in.readInt());
+
+        String[] lines = new String[in.readInt()];
+
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = in.readUTF();
+        }
+
+        config.setLines(lines);
+        config.setThreads(in.readInt());
+        config.setTileSize(in.readInt());
+
+        try {
+            config.setAcceleration(Acceleration.valueOf(in.readUTF()));
+            config.setSampling(Sampling.valueOf(in.readUTF()));
+        } catch (IllegalArgumentException exception) {
+            throw new IOException(exception.getMessage());
+        }
+
+        config.setProgressive(in.readBoolean());
+        config.setAdaptiveThreshold(in.readFloat());
+        config.setMaxRays(in.readInt());
+        config.setPacketSize(in.readInt());
+        config.setCostMap(in.readBoolean());
+        config.setRayOrigin(readVector(in));
+        config.setCamDirection(readVector(in));
+        config.setOddColour(readVector(in));
+        config.setEvenColour(readVector(in));
+        config.setSkyColour(readVector(in));
+        config.setSphereReflectivity(in.readFloat());
+        config.setMaxDepth(in.readInt());
+        config.setBrightness(in.readFloat());
+        config.setGamma(in.readFloat());
+
+        return config;
+    }
+
+    private static void writeVector(DataOutputStream out, Vector3D vector) throws IOException {
+        out.writeDouble(vector.getX());
+        out.writeDouble(vector.getY());
+        out.writeDouble(vector.getZ());
+    }
+
+    private static Vector3D readVector(DataInputStream in) throws IOException {
+        return new Vector3D(in.readDouble(), in.readDouble(), in.readDouble());
+    }
+}
@@ -0,0 +1,61 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Turns linear output levels into display bytes through a gamma lookup
+ * table. Levels are clamped to [0, 255] first, so bright pixels saturate
+ * instead of wrapping around to dark ones.
+ *
+ * @author SkidRunner
+ */
+final class ToneMapper {
+
+    // Table entries per output level, enough that a gamma of 1 maps every
+    // level to itself exactly.
+    private static final int STEPS = 16;
+
+    private final float gamma;
+    private final byte[] table = new byte[256 * STEPS + 1];
+
+    ToneMapper(float gamma) {
+        this.gamma = gamma > 0 ? gamma : 1;
+
+        double exponent = 1 / this.gamma;
+
+        for (int i = 0; i < table.length; i++) {
+            double level = Math.min((double) i / STEPS, 255);
+            table[i] = (byte) Math.min(255, (int) (255 * Math.pow(level / 255, exponent) + 1e-9));
+        }
+    }
+
+    float getGamma() {
+        return gamma;
+    }
+
+    // The display value, 0 to 255, for a linear level.
+    int map(double level) {
+        if (!(level > 0)) {
+            return table[0] & 0xFF;
+        }
+
+        int index = level >= 256 ? table.length - 1 : (int) (level * STEPS);
+
+        return table[index] & 0xFF;
+    }
+}
@@ -0,0 +1,76 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.SplittableRandom;
+
+/**
+ * Scratch state owned by a single render worker. Everything the sampling and
+ * intersection kernel needs per ray lives here and is overwritten in place,
+ * so tracing a sample does not allocate.
+ *
+ * @author SkidRunner
+ */
+final class TraceContext {
+
+    final Sampler sampler;
+
+    final HitRecord hit = new HitRecord();
+
+    // Node stack for SphereHierarchy traversal.
+    final int[] stack = new int[SphereHierarchy.MAX_DEPTH];
+
+    // Set when the worker traces primary rays in packets, see RayPacket.
+    RayPacket packet;
+    PacketTracer packetTracer;
+
+    // Work counted since Ray last added it to RenderStats. Only the worker
+    // that owns this context touches them.
+    long primaryRays;
+    long shadowRays;
+    long reflectionRays;
+    long sphereTests;
+
+    // Rays in the path Ray.shade last followed, the primary ray included.
+    int depth;
+
+    // Colour accumulated by Ray.sample.
+    double red;
+    double green;
+    double blue;
+
+    TraceContext() {
+        this(new RandomSampler(new SplittableRandom()));
+    }
+
+    TraceContext(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    void clearColour() {
+        red = 0;
+        green = 0;
+        blue = 0;
+    }
+
+    void addColour(double red, double green, double blue) {
+        this.red += red;
+        this.green += green;
+        this.blue += blue;
+    }
+}
@@ -0,0 +1,143 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PacketTracer} with the node and sphere tests written against the
+ * incubating Java Vector API, so the CPU tests as many rays per instruction
+ * as its vector registers hold. Only {@link PacketTracer#create} refers to
+ * this class, by name, so the rest of the renderer runs without the
+ * {@code jdk.incubator.vector} module.
+ *
+ * @author SkidRunner
+ */
+final class VectorPacketTracer extends PacketTracer {
+
+    private final VectorSpecies<Double> species;
+
+    VectorPacketTracer(SphereHierarchy hierarchy, int size) {
+        super(hierarchy);
+
+        // The widest registers the packet fills, so the loops below never
+        // need a partial vector.
+        VectorSpecies<Double> preferred = DoubleVector.SPECIES_PREFERRED;
+
+        if (size >= preferred.length() && size % preferred.length() == 0) {
+            species = preferred;
+        } else if (size % 4 == 0 && preferred.length() >= 4) {
+            species = DoubleVector.SPECIES_256;
+        } else {
+            species = DoubleVector.SPECIES_128;
+        }
+
+        if (size % species.length() != 0) {
+            throw new IllegalArgumentException("Packet size " + size + " is not a multiple of "
+                    + species.length());
+        }
+    }
+
+    @Override
+    boolean isVectorised() {
+        return true;
+    }
+
+    @Override
+    boolean enters(int node, RayPacket packet) {
+        double[] bounds = hierarchy.bounds;
+        int b = node * 6;
+
+        DoubleVector zero = DoubleVector.zero(species);
+
+        for (int lane = 0; lane < packet.count; lane += species.length()) {
+            DoubleVector ox = DoubleVector.fromArray(species, packet.originX, lane);
+            DoubleVector oy = DoubleVector.fromArray(species, packet.originY, lane);
+            DoubleVector oz = DoubleVector.fromArray(species, packet.originZ, lane);
+            DoubleVector ix = DoubleVector.fromArray(species, packet.inverseX, lane);
+            DoubleVector iy = DoubleVector.fromArray(species, packet.inverseY, lane);
+            DoubleVector iz = DoubleVector.fromArray(species, packet.inverseZ, lane);
+
+            DoubleVector tx1 = ox.neg().add(bounds[b]).mul(ix);
+            DoubleVector tx2 = ox.neg().add(bounds[b + 3]).mul(ix);
+            DoubleVector ty1 = oy.neg().add(bounds[b + 1]).mul(iy);
+            DoubleVector ty2 = oy.neg().add(bounds[b + 4]).mul(iy);
+            DoubleVector tz1 = oz.neg().add(bounds[b + 2]).mul(iz);
+            DoubleVector tz2 = oz.neg().add(bounds[b + 5]).mul(iz);
+
+            DoubleVector t = DoubleVector.fromArray(species, packet.distance, lane);
+
+            DoubleVector tmin = tx1.min(tx2).max(ty1.min(ty2)).max(tz1.min(tz2).max(zero));
+            DoubleVector tmax = tx1.max(tx2).min(ty1.max(ty2)).min(tz1.max(tz2).min(t));
+
+            if (tmin.compare(VectorOperators.LE, tmax).anyTrue()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    void intersectSphere(int i, RayPacket packet) {
+        double cx = hierarchy.spheres.centreX[i];
+        double cy = hierarchy.spheres.centreY[i];
+        double cz = hierarchy.spheres.centreZ[i];
+
+        for (int lane = 0; lane < packet.count; lane += species.length()) {
+            DoubleVector dx = DoubleVector.fromArray(species, packet.directionX, lane);
+            DoubleVector dy = DoubleVector.fromArray(species, packet.directionY, lane);
+            DoubleVector dz = DoubleVector.fromArray(species, packet.directionZ, lane);
+            DoubleVector px = DoubleVector.fromArray(species, packet.originX, lane).sub(cx);
+            DoubleVector py = DoubleVector.fromArray(species, packet.originY, lane).sub(cy);
+            DoubleVector pz = DoubleVector.fromArray(species, packet.originZ, lane).sub(cz);
+
+            DoubleVector b = px.mul(dx).add(py.mul(dy)).add(pz.mul(dz));
+            DoubleVector c = px.mul(px).add(py.mul(py)).add(pz.mul(pz)).sub(1);
+            DoubleVector q = b.mul(b).sub(c);
+
+            VectorMask<Double> hit = q.compare(VectorOperators.GT, 0);
+
+            if (!hit.anyTrue()) {
+                continue;
+            }
+
+            // Lanes with q <= 0 take the square root of a negative number and
+            // get NaN, which fails the comparisons below.
+            DoubleVector s = b.neg().sub(q.sqrt());
+            DoubleVector t = DoubleVector.fromArray(species, packet.distance, lane);
+
+            hit = hit.and(s.compare(VectorOperators.LT, t)).and(s.compare(VectorOperators.GT, .01));
+
+            if (!hit.anyTrue()) {
+                continue;
+            }
+
+            t.blend(s, hit).intoArray(packet.distance, lane);
+
+            for (int l = 0; l < species.length(); l++) {
+                if (hit.laneIsSet(l)) {
+                    packet.sphere[lane + l] = hierarchy.spheres.sphereIndex[i];
+                }
+            }
+        }
+    }
+}
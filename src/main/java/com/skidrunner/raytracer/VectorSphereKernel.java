@@ -0,0 +1,119 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SphereKernel} written against the incubating Java Vector API: the
+ * ray is broadcast to every lane and each lane tests a different sphere.
+ * A group of lanes is only reduced to the closest when one of them is nearer
+ * than the best so far, which is rare once a hit is found. Nothing but
+ * scalars is kept between groups, so C2 keeps the vectors in registers and
+ * a trace allocates nothing, see AllocationTest. Only
+ * {@link SphereKernel#create} refers to this class, by name.
+ *
+ * @author SkidRunner
+ */
+final class VectorSphereKernel extends SphereKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final DoubleVector MISS = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+
+    @Override
+    boolean isVectorised() {
+        return true;
+    }
+
+    @Override
+    int closest(SphereSet spheres, int start, int end,
+                double ox, double oy, double oz, double dx, double dy, double dz, double t) {
+        int hit = -1;
+        int i = start;
+
+        // Only scalars live across iterations. Vectors or masks carried
+        // from one iteration to the next are boxed on the heap by C2.
+        for (int last = end - SPECIES.length(); i <= last; i += SPECIES.length()) {
+            DoubleVector s = distances(spheres, i, ox, oy, oz, dx, dy, dz);
+            VectorMask<Double> nearer = s.compare(VectorOperators.LT, t);
+
+            if (nearer.anyTrue()) {
+                // Misses are +infinity, so the minimum is a hit.
+                t = s.reduceLanes(VectorOperators.MIN);
+                hit = i + s.compare(VectorOperators.EQ, t).firstTrue();
+            }
+        }
+
+        // The last few spheres one at a time, so no lane strays into spheres
+        // past end that belong to someone else, e.g. the next leaf.
+        for (; i < end; i++) {
+            double s = spheres.distance(i, ox, oy, oz, dx, dy, dz);
+
+            if (s < t) {
+                t = s;
+                hit = i;
+            }
+        }
+
+        return hit;
+    }
+
+    @Override
+    boolean any(SphereSet spheres, int start, int end,
+                double ox, double oy, double oz, double dx, double dy, double dz, double t) {
+        int i = start;
+
+        for (int last = end - SPECIES.length(); i <= last; i += SPECIES.length()) {
+            if (distances(spheres, i, ox, oy, oz, dx, dy, dz).compare(VectorOperators.LT, t).anyTrue()) {
+                return true;
+            }
+        }
+
+        for (; i < end; i++) {
+            if (spheres.distance(i, ox, oy, oz, dx, dy, dz) < t) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // The distances along [o,d] to spheres [i, i + lanes), the same as
+    // SphereSet.distance: +infinity for a miss or a hit closer than .01.
+    private static DoubleVector distances(SphereSet spheres, int i,
+                                          double ox, double oy, double oz, double dx, double dy, double dz) {
+        DoubleVector px = DoubleVector.fromArray(SPECIES, spheres.centreX, i).neg().add(ox);
+        DoubleVector py = DoubleVector.fromArray(SPECIES, spheres.centreY, i).neg().add(oy);
+        DoubleVector pz = DoubleVector.fromArray(SPECIES, spheres.centreZ, i).neg().add(oz);
+        DoubleVector r = DoubleVector.fromArray(SPECIES, spheres.radius, i);
+
+        DoubleVector b = px.mul(dx).add(py.mul(dy)).add(pz.mul(dz));
+        DoubleVector c = px.mul(px).add(py.mul(py)).add(pz.mul(pz)).sub(r.mul(r));
+        DoubleVector q = b.mul(b).sub(c);
+        DoubleVector s = b.neg().sub(q.sqrt());
+
+        // sqrt of a negative q is NaN, which the blend turns into a miss.
+        VectorMask<Double> hit = q.compare(VectorOperators.GT, 0).and(s.compare(VectorOperators.GT, .01));
+
+        return MISS.blend(s, hit);
+    }
+}
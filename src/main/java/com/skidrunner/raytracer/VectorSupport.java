@@ -0,0 +1,53 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Loads the classes written against the incubating Java Vector API. They
+ * are only ever named in strings here, so a JVM without the
+ * {@code jdk.incubator.vector} module never links them and the callers keep
+ * their plain loops instead.
+ *
+ * @author SkidRunner
+ */
+final class VectorSupport {
+
+    // Set to false to always use the plain loops, e.g. to compare them, or
+    // to true to also use the classes that are off by default.
+    static final String PROPERTY = "com.skidrunner.raytracer.vector";
+
+    private VectorSupport() {
+    }
+
+    // Returns a new instance of the named class, made by its constructor
+    // taking types, or null if PROPERTY, or byDefault when it is unset, says
+    // not to or the module is missing.
+    static Object create(String name, boolean byDefault, Class<?>[] types, Object... arguments) {
+        if (!Boolean.parseBoolean(System.getProperty(PROPERTY, Boolean.toString(byDefault)))) {
+            return null;
+        }
+
+        try {
+            return Class.forName(name).getDeclaredConstructor(types).newInstance(arguments);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+}
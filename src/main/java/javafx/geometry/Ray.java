@@ -103,9 +103,6 @@ public class Ray {
      */
     public boolean intersects(Bounds b) {
         if ((b == null) || b.isEmpty()) return false;
-        if (b instanceof BoundingSphere) {
-            //TODO: implement sphere ray intersection.
-        }
         return intersects(b.getMinX(), b.getMinY(), b.getMinZ(), b.getWidth(), b.getHeight(), b.getDepth());
     }
 
@@ -103,6 +103,7 @@ public class Colour implements Cloneable, java.io.Serializable {
         this.green = colour.green;
         this.blue = colour.blue;
         this.opacity = colour.opacity;
+        return this;
     }
     
     public Colour set(double red, double green, double blue, double opacity) {
@@ -110,6 +111,7 @@ public class Colour implements Cloneable, java.io.Serializable {
         this.green = green;
         this.blue = blue;
         this.opacity = opacity;
+        return this;
     }
     
     /**
@@ -0,0 +1,90 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that each {@link Acceleration} finds the same first hit in
+ * {@link Ray#test} as testing every sphere in the pattern does.
+ *
+ * @author SkidRunner
+ */
+public class AccelerationTest {
+
+    private static final int RAYS = 50000;
+
+    @Test
+    public void gridMatchesScan() {
+        check(Acceleration.GRID);
+    }
+
+    @Test
+    public void hierarchyMatchesScan() {
+        check(Acceleration.BVH);
+    }
+
+    private void check(Acceleration acceleration) {
+        Random random = new Random(4);
+
+        // Empty, full, sparse and a long thin pattern, then the default one.
+        String[][] patterns = {
+                TestScenes.pattern(random, 6, 6, 0),
+                TestScenes.pattern(random, 12, 12, 1),
+                TestScenes.pattern(random, 20, 20, 0.2),
+                TestScenes.pattern(random, 3, 40, 0.5),
+                BatchRenderer.parsePattern("-****--******-/**--**-**---**/**-----**---**/*****--**--***/"
+                        + "----**-*****--/**--**-**-***-/-****--**--***")
+        };
+
+        double[] ray = new double[6];
+
+        for (String[] lines : patterns) {
+            Ray expected = new Ray();
+            expected.prepare(TestScenes.config(lines, Acceleration.NONE));
+
+            Ray actual = new Ray();
+            actual.prepare(TestScenes.config(lines, acceleration));
+
+            TraceContext expectedContext = new TraceContext();
+            TraceContext actualContext = new TraceContext();
+            HitRecord expectedHit = expectedContext.hit;
+            HitRecord actualHit = actualContext.hit;
+
+            for (int i = 0; i < RAYS; i++) {
+                TestScenes.ray(random, lines.length, lines[0].length(), ray);
+
+                expected.test(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], expectedContext);
+                actual.test(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], actualContext);
+
+                String message = acceleration + " ray " + Arrays.toString(ray);
+
+                assertEquals(message, expectedHit.material, actualHit.material);
+                assertEquals(message, expectedHit.distance, actualHit.distance, 1e-9);
+                assertEquals(message, expectedHit.normalX, actualHit.normalX, 1e-9);
+                assertEquals(message, expectedHit.normalY, actualHit.normalY, 1e-9);
+                assertEquals(message, expectedHit.normalZ, actualHit.normalZ, 1e-9);
+            }
+        }
+    }
+}
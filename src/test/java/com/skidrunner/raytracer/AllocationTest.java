@@ -0,0 +1,110 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that tracing a sample does not allocate once the kernel is compiled.
+ * Samples the scene on the test thread and reads the bytes it has allocated
+ * before and after with {@code ThreadMXBean.getThreadAllocatedBytes}. Every
+ * acceleration is checked with the scalar sphere kernel and, when the
+ * {@code jdk.incubator.vector} module is present, the vector one.
+ *
+ * @author SkidRunner
+ */
+public class AllocationTest {
+
+    private static final int WARMUP_RAYS = 2000000;
+    private static final int MEASURED_RAYS = 100000;
+
+    @After
+    public void clearKernel() {
+        System.clearProperty(VectorSupport.PROPERTY);
+    }
+
+    @Test
+    public void scalarKernelDoesNotAllocate() {
+        // Ray picks its kernel when it builds the scene.
+        System.setProperty(VectorSupport.PROPERTY, "false");
+
+        for (Acceleration acceleration : Acceleration.values()) {
+            check(acceleration);
+        }
+    }
+
+    @Test
+    public void vectorKernelDoesNotAllocate() {
+        System.setProperty(VectorSupport.PROPERTY, "true");
+        assumeTrue(SphereKernel.create().isVectorised());
+
+        for (Acceleration acceleration : Acceleration.values()) {
+            check(acceleration);
+        }
+    }
+
+    private void check(Acceleration acceleration) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        RenderConfig config = TestScenes.config(BatchRenderer.parsePattern(
+                "-****--******-/**--**-**---**/**-----**---**/*****--**--***/"
+                        + "----**-*****--/**--**-**-***-/-****--**--***"), acceleration);
+
+        Ray ray = new Ray();
+        ray.prepare(config);
+
+        TraceContext context = new TraceContext();
+        Vector3D origin = config.getRayOrigin();
+
+        trace(ray, context, origin, WARMUP_RAYS);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+
+        trace(ray, context, origin, MEASURED_RAYS);
+
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(acceleration + " bytes allocated for " + MEASURED_RAYS + " samples", 0, allocated);
+    }
+
+    // Samples a fan of rays from the default camera position across the
+    // pattern, the floor and the sky.
+    private static void trace(Ray ray, TraceContext context, Vector3D origin, int count) {
+        for (int i = 0; i < count; i++) {
+            double dx = -0.3 + 0.6 * (i % 512) / 512;
+            double dz = -0.4 + 0.6 * ((i / 512) % 512) / 512;
+            double dy = -1;
+
+            double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            context.clearColour();
+            ray.sample(origin.getX(), origin.getY(), origin.getZ(), dx * factor, dy * factor, dz * factor, 1, context);
+        }
+    }
+}
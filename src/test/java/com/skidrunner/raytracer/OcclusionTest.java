@@ -0,0 +1,81 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link Ray#occluded} says a ray is blocked exactly when
+ * {@link Ray#test} finds the floor or a sphere nearer than the limit, with
+ * every {@link Acceleration}.
+ *
+ * @author SkidRunner
+ */
+public class OcclusionTest {
+
+    private static final int RAYS = 50000;
+
+    @Test
+    public void occludedMatchesTest() {
+        Random random = new Random(17);
+
+        String[][] patterns = {
+                TestScenes.pattern(random, 6, 6, 0),
+                TestScenes.pattern(random, 12, 12, 1),
+                TestScenes.pattern(random, 20, 20, 0.2),
+                BatchRenderer.parsePattern("-****--******-/**--**-**---**/**-----**---**/*****--**--***/"
+                        + "----**-*****--/**--**-**-***-/-****--**--***")
+        };
+
+        double[] ray = new double[6];
+
+        for (Acceleration acceleration : Acceleration.values()) {
+            for (String[] lines : patterns) {
+                Ray raytracer = new Ray();
+                raytracer.prepare(TestScenes.config(lines, acceleration));
+
+                TraceContext context = new TraceContext();
+                HitRecord hit = context.hit;
+
+                for (int i = 0; i < RAYS; i++) {
+                    TestScenes.ray(random, lines.length, lines[0].length(), ray);
+
+                    // Shadow rays stop at the light, so mostly short limits.
+                    double t = random.nextInt(4) == 0 ? 1e9 : random.nextDouble() * 20;
+
+                    raytracer.test(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], context);
+
+                    // Too close to call either way.
+                    if (Math.abs(hit.distance - t) < 1e-9) {
+                        continue;
+                    }
+
+                    boolean blocked = hit.material != HitRecord.SKY && hit.distance < t;
+
+                    assertEquals(acceleration + " ray " + Arrays.toString(ray) + " within " + t, blocked,
+                            raytracer.occluded(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], t, context));
+                }
+            }
+        }
+    }
+}
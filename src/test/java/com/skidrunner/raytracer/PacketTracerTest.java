@@ -0,0 +1,122 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link PacketTracer} finds the same first hit for every lane
+ * of a packet as {@link Ray#test} does for the ray on its own.
+ *
+ * @author SkidRunner
+ */
+public class PacketTracerTest {
+
+    private static final int PACKET_SIZE = 16;
+    private static final int PACKETS = 5000;
+
+    @After
+    public void clearTracer() {
+        System.clearProperty(VectorSupport.PROPERTY);
+    }
+
+    @Test
+    public void scalarPacketsMatchTest() {
+        System.setProperty(VectorSupport.PROPERTY, "false");
+        check(false);
+    }
+
+    @Test
+    public void vectorPacketsMatchTest() {
+        System.setProperty(VectorSupport.PROPERTY, "true");
+        check(true);
+    }
+
+    private void check(boolean vectorised) {
+        Random random = new Random(15);
+
+        String[][] patterns = {
+                TestScenes.pattern(random, 6, 6, 0),
+                TestScenes.pattern(random, 20, 20, 0.2),
+                TestScenes.pattern(random, 3, 40, 0.5),
+                BatchRenderer.parsePattern("-****--******-/**--**-**---**/**-----**---**/*****--**--***/"
+                        + "----**-*****--/**--**-**-***-/-****--**--***")
+        };
+
+        double[] ray = new double[6];
+
+        for (String[] lines : patterns) {
+            RenderConfig config = TestScenes.config(lines, Acceleration.BVH);
+            config.setPacketSize(PACKET_SIZE);
+
+            Ray raytracer = new Ray();
+            raytracer.prepare(config);
+
+            // The same tracer Ray would trace the render's primary rays with.
+            TraceContext context = raytracer.createContext(config, new SplittableRandom(), 0);
+            RayPacket packet = context.packet;
+
+            assumeTrue(context.packetTracer.isVectorised() == vectorised);
+
+            int rows = lines.length;
+            int cols = lines[0].length();
+
+            for (int p = 0; p < PACKETS; p++) {
+                packet.count = 1 + random.nextInt(PACKET_SIZE);
+
+                // Half of the packets share an origin and point roughly the
+                // same way, like primary rays, the rest are any rays at all.
+                boolean coherent = random.nextBoolean();
+                TestScenes.ray(random, rows, cols, ray);
+
+                for (int lane = 0; lane < packet.count; lane++) {
+                    if (coherent) {
+                        double dx = ray[3] + random.nextGaussian() * 0.05;
+                        double dy = ray[4] + random.nextGaussian() * 0.05;
+                        double dz = ray[5] + random.nextGaussian() * 0.05;
+                        double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                        packet.set(lane, ray[0], ray[1], ray[2], dx * factor, dy * factor, dz * factor);
+                    } else {
+                        TestScenes.ray(random, rows, cols, ray);
+                        packet.set(lane, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5]);
+                    }
+                }
+
+                context.packetTracer.intersect(packet);
+
+                for (int lane = 0; lane < packet.count; lane++) {
+                    raytracer.test(packet.originX[lane], packet.originY[lane], packet.originZ[lane],
+                            packet.directionX[lane], packet.directionY[lane], packet.directionZ[lane], context);
+
+                    String message = "packet " + p + " lane " + lane;
+
+                    assertEquals(message, context.hit.material, packet.material[lane]);
+                    assertEquals(message, context.hit.distance, packet.distance[lane], 1e-9);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the vector sphere kernel finds the same spheres as the plain
+ * loops of {@link SphereKernel}.
+ *
+ * @author SkidRunner
+ */
+public class SphereKernelTest {
+
+    private static final int QUERIES = 300000;
+
+    @Test
+    public void vectorKernelMatchesScalar() {
+        SphereKernel vector = SphereKernel.create();
+        SphereKernel scalar = new SphereKernel();
+
+        assumeTrue(vector.isVectorised());
+
+        Random random = new Random(16);
+        int size = 20;
+        boolean[][] data = new boolean[size][size];
+
+        for (boolean[] row : data) {
+            for (int col = 0; col < size; col++) {
+                row[col] = random.nextBoolean();
+            }
+        }
+
+        SphereSet spheres = new SphereSet(data, size, size);
+        double[] ray = new double[6];
+
+        for (int i = 0; i < QUERIES; i++) {
+            // Runs of every length from empty up to a few vectors, starting
+            // anywhere, so the tail of a run is checked as well.
+            int start = random.nextInt(spheres.size);
+            int end = start + random.nextInt(Math.min(20, spheres.size - start) + 1);
+            double t = random.nextBoolean() ? 1e9 : random.nextDouble() * 20;
+
+            TestScenes.ray(random, size, size, ray);
+
+            String message = "spheres " + start + " to " + end + " within " + t;
+
+            assertEquals(message, scalar.closest(spheres, start, end, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], t),
+                    vector.closest(spheres, start, end, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], t));
+            assertEquals(message, scalar.any(spheres, start, end, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], t),
+                    vector.any(spheres, start, end, ray[0], ray[1], ray[2], ray[3], ray[4], ray[5], t));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.skidrunner.raytracer;
+
+/*
+ *  Copyright (C) 2016 SkidRunner
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Random;
+
+/**
+ * Random scenes and rays for the tests that compare two ways of tracing the
+ * same thing.
+ *
+ * @author SkidRunner
+ */
+final class TestScenes {
+
+    private TestScenes() {
+    }
+
+    // A pattern of rows lines and cols columns in which each sphere is
+    // present with the given probability.
+    static String[] pattern(Random random, int rows, int cols, double density) {
+        String[] lines = new String[rows];
+
+        for (int r = 0; r < rows; r++) {
+            StringBuilder builder = new StringBuilder(cols);
+
+            for (int c = 0; c < cols; c++) {
+                builder.append(random.nextDouble() < density ? '*' : '-');
+            }
+
+            lines[r] = builder.toString();
+        }
+
+        return lines;
+    }
+
+    // The MainApplication defaults with the given pattern and acceleration.
+    static RenderConfig config(String[] lines, Acceleration acceleration) {
+        RenderConfig config = new RenderConfig();
+
+        config.setImageWidth(512);
+        config.setImageHeight(512);
+        config.setRays(1);
+        config.setThreads(1);
+        config.setLines(lines);
+        config.setAcceleration(acceleration);
+
+        config.setBrightness(10);
+        config.setCamDirection(new Vector3D(-2, -12, 0));
+        config.setEvenColour(new Vector3D(3, 1, 1));
+        config.setOddColour(new Vector3D(3, 3, 3));
+        config.setRayOrigin(new Vector3D(8, 18, 8));
+        config.setSkyColour(new Vector3D(.4f, .4f, 1f));
+        config.setSphereReflectivity(0.5f);
+
+        return config;
+    }
+
+    // Fills ray with an origin somewhere around a pattern of rows by cols
+    // spheres, then a unit direction. Half of the rays are aimed into the
+    // pattern so plenty of them hit a sphere, the rest go anywhere.
+    static void ray(Random random, int rows, int cols, double[] ray) {
+        double ox = -3 + random.nextDouble() * (cols + 6);
+        double oy = -8 + random.nextDouble() * 16;
+        double oz = 0.5 + random.nextDouble() * (rows + 8);
+
+        double dx;
+        double dy;
+        double dz;
+
+        if (random.nextBoolean()) {
+            dx = random.nextDouble() * cols - ox;
+            dy = -oy;
+            dz = 4 + random.nextDouble() * rows - oz;
+        } else {
+            dx = random.nextGaussian();
+            dy = random.nextGaussian();
+            dz = random.nextGaussian();
+        }
+
+        double factor = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        ray[0] = ox;
+        ray[1] = oy;
+        ray[2] = oz;
+        ray[3] = dx * factor;
+        ray[4] = dy * factor;
+        ray[5] = dz * factor;
+    }
+}